@@ -18,7 +18,6 @@ import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Looper;
 
@@ -51,7 +50,7 @@ public enum QCLocation implements QCNotificationListener{
 
     private boolean _locationEnabled;
     private String _myProvider;
-    private AsyncTask _geoTask;
+    private QCAsyncTask _geoTask;
     private Geocoder _geocoder;
 
     public static void setEnableLocationGathering(boolean enableLocationGathering) {
@@ -174,7 +173,7 @@ public enum QCLocation implements QCNotificationListener{
     void stop() {
         if(_locManager != null){
             _locManager.removeUpdates(singleUpdateListener);
-            if (null != _geoTask && _geoTask.getStatus() != AsyncTask.Status.FINISHED) {
+            if (null != _geoTask && _geoTask.getStatus() != QCAsyncTask.Status.FINISHED) {
                 _geoTask.cancel(true);
             }
             _geoTask = null;
@@ -189,7 +188,7 @@ public enum QCLocation implements QCNotificationListener{
         Double lat = location.getLatitude();
         Double longTemp = location.getLongitude();
 
-        _geoTask = new AsyncTask<Double, Void, MeasurementLocation>() {
+        _geoTask = new QCAsyncTask<Double, MeasurementLocation>() {
             @Override
             protected MeasurementLocation doInBackground(Double... params) {
                 MeasurementLocation retval;
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+/**
+ * Drives the session from the activity lifecycle, so activities do not have to call activityStart and activityStop.
+ * <p/>
+ * The tracker holds the one foreground or background state of the process, counted in started activities.  Only the
+ * first activity to start and the last one to stop reach QCMeasurement, which sets its own count to match and begins,
+ * resumes or pauses the session, with the pause grace period and the session timeout.  Every other transition just
+ * moves the count here.  Lifecycle callbacks only exist from Ice Cream Sandwich on, so this class must not
+ * be loaded on older devices.  Nothing outside of it names the callback types, and it is only reached through
+ * {@link #register} once the version has been checked.
+ */
+class QCActivityTracker implements Application.ActivityLifecycleCallbacks {
+
+    private final String m_apiKey;
+    private final String m_networkCode;
+    private final String[] m_labels;
+    private final boolean m_directedAtKids;
+    //only given on the first start, later sessions keep whatever user id is recorded by then
+    private String m_userId;
+
+    //callbacks all arrive on the main thread
+    private int m_startedActivities;
+
+    static void register(Application application, String apiKey, String networkCode, String userIdOrNull,
+                         String[] labelsOrNull, boolean directedAtKids) {
+        application.registerActivityLifecycleCallbacks(new QCActivityTracker(apiKey, networkCode, userIdOrNull, labelsOrNull, directedAtKids));
+    }
+
+    private QCActivityTracker(String apiKey, String networkCode, String userIdOrNull, String[] labelsOrNull, boolean directedAtKids) {
+        m_apiKey = apiKey;
+        m_networkCode = networkCode;
+        m_userId = userIdOrNull;
+        m_labels = labelsOrNull;
+        m_directedAtKids = directedAtKids;
+        m_startedActivities = 0;
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        if (m_startedActivities++ == 0) {
+            QCMeasurement.INSTANCE.enterForeground(activity, m_apiKey, m_networkCode, m_userId, m_labels, m_directedAtKids);
+            m_userId = null;
+        }
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        //an activity started before the tracker was registered can stop without having been counted
+        if (m_startedActivities > 0 && --m_startedActivities == 0) {
+            QCMeasurement.INSTANCE.enterBackground(m_labels);
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+}
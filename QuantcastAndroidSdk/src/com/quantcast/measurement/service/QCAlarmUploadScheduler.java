@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * {@link QCUploadScheduler} on top of a non-waking AlarmManager alarm.  The alarm is only delivered once something
+ * else has woken the device, so the upload shares the radio with whatever woke it.
+ */
+class QCAlarmUploadScheduler implements QCUploadScheduler {
+
+    @Override
+    public void schedule(Context context, long delay) {
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarms != null) {
+            alarms.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay, pendingIntent(context));
+        }
+    }
+
+    @Override
+    public void cancel(Context context) {
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (alarms != null) {
+            alarms.cancel(pendingIntent(context));
+        }
+    }
+
+    private static PendingIntent pendingIntent(Context context) {
+        Intent intent = new Intent(context, QCUploadReceiver.class);
+        intent.setAction(QCUploadReceiver.ACTION_UPLOAD);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
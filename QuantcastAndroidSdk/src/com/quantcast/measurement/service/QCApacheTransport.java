@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link QCTransport} on top of a single pooled Apache DefaultHttpClient.
+ * <p/>
+ * Connections are kept alive between uploads and policy downloads so that consecutive requests skip the
+ * TCP and TLS handshakes.  Used on platforms where HttpURLConnection cannot safely reuse connections.
+ */
+class QCApacheTransport implements QCTransport {
+
+    private static final int MAX_CONNECTIONS = 2;
+    private static final long IDLE_CONNECTION_TIMEOUT = 60 * 1000; // 1 minute
+
+    private DefaultHttpClient m_client;
+
+    @Override
+    public int post(String url, Map<String, String> headers, final Body body) throws IOException {
+        HttpPost post = new HttpPost(url);
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                post.setHeader(header.getKey(), header.getValue());
+            }
+        }
+
+        //the body is written while it is being sent
+        AbstractHttpEntity entity = new AbstractHttpEntity() {
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public long getContentLength() {
+                return body.getContentLength();
+            }
+
+            @Override
+            public InputStream getContent() throws IOException {
+                throw new UnsupportedOperationException("Request body can only be written");
+            }
+
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                body.writeTo(outputStream);
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return false;
+            }
+        };
+        entity.setChunked(body.getContentLength() < 0);
+        post.setEntity(entity);
+
+        HttpResponse response = execute(post);
+        //release the connection back to the pool
+        HttpEntity responseEntity = response.getEntity();
+        if (responseEntity != null) {
+            responseEntity.consumeContent();
+        }
+        return response.getStatusLine().getStatusCode();
+    }
+
+    @Override
+    public String get(String url) throws IOException {
+        HttpResponse response = execute(new HttpGet(url));
+        //closing the content stream releases the connection back to the pool
+        return QCUtility.readStreamToString(response.getEntity().getContent());
+    }
+
+    private HttpResponse execute(HttpRequestBase request) throws IOException {
+        HttpParams params = request.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, QCMeasurement.INSTANCE.getConnectionTimeout());
+        HttpConnectionParams.setSoTimeout(params, QCMeasurement.INSTANCE.getSocketTimeout());
+        try {
+            return getClient().execute(request, new BasicHttpContext());
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            request.abort();
+            throw e;
+        }
+    }
+
+    private synchronized DefaultHttpClient getClient() {
+        if (m_client == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            HttpProtocolParams.setUseExpectContinue(params, false);
+            //pooled connections may have been closed by the server while idle
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+            ConnManagerParams.setTimeout(params, QCMeasurement.INSTANCE.getConnectionTimeout());
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            m_client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+        } else {
+            m_client.getConnectionManager().closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        return m_client;
+    }
+
+}
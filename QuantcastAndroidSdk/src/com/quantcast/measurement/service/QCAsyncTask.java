@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+/**
+ * A minimal replacement for {@link android.os.AsyncTask} that runs on the SDK's own {@link QCExecutor}.
+ * <p/>
+ * onPreExecute runs on the calling thread, doInBackground on the SDK thread and onPostExecute or onCancelled on the main thread.
+ * A task that the executor drops because too much work is queued is cancelled, so onCancelled still runs.
+ */
+abstract class QCAsyncTask<Params, Result> {
+
+    enum Status {
+        PENDING, RUNNING, FINISHED
+    }
+
+    private volatile Status m_status = Status.PENDING;
+    private volatile boolean m_cancelled = false;
+
+    protected void onPreExecute() {
+    }
+
+    protected abstract Result doInBackground(Params... params);
+
+    protected void onPostExecute(Result result) {
+    }
+
+    protected void onCancelled() {
+    }
+
+    /**
+     * @return true if the task must run even when the SDK thread has too much work queued.  False by default.
+     */
+    protected boolean isRequired() {
+        return false;
+    }
+
+    final QCAsyncTask<Params, Result> execute(final Params... params) {
+        if (m_status != Status.PENDING) {
+            throw new IllegalStateException("Cannot execute task: the task has already been executed.");
+        }
+        m_status = Status.RUNNING;
+        onPreExecute();
+        QCExecutor.INSTANCE.execute(new QCExecutor.Task() {
+            @Override
+            public void run() {
+                postFinish(m_cancelled ? null : doInBackground(params));
+            }
+
+            @Override
+            public boolean isRequired() {
+                return QCAsyncTask.this.isRequired();
+            }
+
+            @Override
+            public void rejected() {
+                m_cancelled = true;
+                postFinish(null);
+            }
+        });
+        return this;
+    }
+
+    private void postFinish(final Result result) {
+        QCExecutor.INSTANCE.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                finish(result);
+            }
+        });
+    }
+
+    private void finish(Result result) {
+        if (m_cancelled) {
+            onCancelled();
+        } else {
+            onPostExecute(result);
+        }
+        m_status = Status.FINISHED;
+    }
+
+    /**
+     * Keeps doInBackground from starting if it has not yet and makes sure onPostExecute is not called.
+     * The SDK thread is shared, so a running doInBackground is never interrupted; it can check {@link #isCancelled()}.
+     */
+    final boolean cancel(boolean mayInterruptIfRunning) {
+        boolean wasFinished = m_status == Status.FINISHED;
+        m_cancelled = true;
+        return !wasFinished;
+    }
+
+    final boolean isCancelled() {
+        return m_cancelled;
+    }
+
+    final Status getStatus() {
+        return m_status;
+    }
+
+}
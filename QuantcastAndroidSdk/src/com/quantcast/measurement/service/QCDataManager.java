@@ -11,74 +11,332 @@
 
 package com.quantcast.measurement.service;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabaseCorruptException;
-import android.os.AsyncTask;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-class QCDataManager {
+class QCDataManager implements QCNotificationListener {
 
     private static final QCLog.Tag TAG = new QCLog.Tag(QCDataManager.class);
 
-    private static final int MAX_UPLOAD_SIZE = 200;
-    private static final int MIN_UPLOAD_SIZE = 2;
     private static final int DEFAULT_UPLOAD_EVENT_COUNT = 25;
+    private static final int EVENT_BUFFER_SIZE = 50;
+    private static final long EVENT_BUFFER_MAX_AGE = 10 * 1000; // 10 seconds
+    //past this many stored events uploads are no longer held back for a better network or a scheduled upload
+    private static final int BACKLOG_LIMIT = 1000;
+    static final long SCHEDULED_UPLOAD_DELAY = 15 * 60 * 1000; // 15 minutes
+    static final long SCHEDULED_UPLOAD_RETRY_DELAY = 60 * 60 * 1000; // 1 hour
+    //events leased to an upload that has not finished by then are sent again
+    static final long UPLOAD_LEASE_DURATION = 5 * 60 * 1000; // 5 minutes
 
     private long m_eventCount;
     private final QCDataUploader m_uploader;
     private int m_uploadCount;
-    private int m_maxUploadCount;
-    private boolean m_uploading;
+    private final QCUploadSizer m_sizer;
+    private final QCUploadBackoff m_backoff;
+    private volatile boolean m_uploading;
+    //leases of accepted uploads whose events are deleted together before the next upload or when the app stops
+    private final List<String> m_acknowledgedLeases = new ArrayList<String>();
 
     private final QCDatabaseDAO m_database;
 
+    //events are held here and written together instead of opening a transaction per event
+    private final QCEventBuffer m_buffer;
+    private final Handler m_handler;
+    private QCPolicy m_bufferPolicy;
+    private final Runnable m_flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushEvents();
+        }
+    };
+    private QCPolicy m_retryPolicy;
+    private final Runnable m_retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (m_eventCount > 0 && !m_uploading && m_retryPolicy != null) {
+                uploadEvents(m_retryPolicy, false);
+            }
+        }
+    };
+
+    //only registered while an upload is waiting for the network
+    private QCPolicy m_waitingPolicy;
+    //a forced upload that is waiting may go out on a metered network, like it could have when it was asked for
+    private boolean m_waitingForced;
+    //whether the device had no connection at all when the wait started, as opposed to only a metered one
+    private boolean m_waitingDisconnected;
+    private boolean m_draining;
+    //set while a scheduled upload runs, and run once it has sent everything or given up
+    private Runnable m_scheduledRunDone;
+    private final BroadcastReceiver m_connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean forced = m_waitingForced;
+            if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false) || !canUseNetwork(context, forced)) return;
+            boolean reconnected = m_waitingDisconnected;
+            QCPolicy policy = stopWaitingForNetwork();
+            //a new link deserves a fresh start, and everything that piled up goes out back to back.  A move between
+            //wifi and mobile is caught by the backoff itself
+            if (reconnected) {
+                m_backoff.reset();
+            }
+            if (m_eventCount > 0 && !m_uploading && policy != null) {
+                m_draining = true;
+                uploadEvents(policy, forced);
+            }
+        }
+    };
 
     QCDataManager(Context context) {
         m_database = new QCDatabaseDAO(context);
         m_uploader = new QCDataUploader();
         m_uploadCount = DEFAULT_UPLOAD_EVENT_COUNT;
-        m_maxUploadCount = MAX_UPLOAD_SIZE;
-        m_eventCount = m_database.numberOfEvents();
+        m_sizer = new QCUploadSizer();
+        m_backoff = new QCUploadBackoff(context);
+        //also starts the running totals the storage limits are checked against
+        m_eventCount = m_database.countStoredEvents();
         m_uploading = false;
+        m_buffer = new QCEventBuffer(EVENT_BUFFER_SIZE, EVENT_BUFFER_MAX_AGE);
+        m_handler = new Handler(Looper.getMainLooper());
+        QCNotificationCenter.INSTANCE.addListener(QCMeasurement.QC_NOTIF_APP_STOP, this);
+        QCNotificationCenter.INSTANCE.addListener(QCOptOutUtility.QC_NOTIF_OPT_OUT_CHANGED, this);
     }
 
     void postEvent(QCEvent event, QCPolicy policy) {
         //if we are blacked out then we won't save anything
         if (policy.isBlackedOut()) return;
-        AsyncTask<QCEvent, Void, Integer> task = newDBTask(policy);
-        task.execute(event);
+        m_bufferPolicy = policy;
+        boolean wasEmpty = m_buffer.isEmpty();
+        List<QCEvent> flushed = m_buffer.add(event, System.currentTimeMillis());
+        if (flushed != null) {
+            m_handler.removeCallbacks(m_flushRunnable);
+            writeEvents(flushed, policy);
+        } else if (wasEmpty) {
+            //make sure a quiet app still gets its events written once they are old enough.  The timer only starts
+            //with the oldest event, restarting it for every event would let that one wait up to twice as long
+            m_handler.postDelayed(m_flushRunnable, m_buffer.getMaxAge());
+        }
+    }
+
+    void flushEvents() {
+        m_handler.removeCallbacks(m_flushRunnable);
+        List<QCEvent> flushed = m_buffer.drain();
+        if (!flushed.isEmpty() && m_bufferPolicy != null) {
+            writeEvents(flushed, m_bufferPolicy);
+        }
+    }
+
+    private void writeEvents(List<QCEvent> events, QCPolicy policy) {
+        QCAsyncTask<QCEvent, Integer> task = newDBTask(policy);
+        task.execute(events.toArray(new QCEvent[events.size()]));
     }
 
-    void uploadEvents(QCPolicy policy) {
+    @Override
+    public void notificationCallback(String notificationName, Object o) {
+        if (notificationName.equals(QCMeasurement.QC_NOTIF_APP_STOP)) {
+            boolean pending = m_eventCount > 0 || !m_buffer.isEmpty();
+            flushEvents();
+            //dropping this would leave accepted events to be sent again after a crash
+            QCExecutor.INSTANCE.execute(new QCExecutor.Task() {
+                @Override
+                public void run() {
+                    try {
+                        removeAcknowledgedEvents(m_database.getWritableDatabase());
+                    } catch (Throwable t) {
+                        QCLog.e(TAG, "DB remove error", t);
+                    } finally {
+                        m_database.close();
+                    }
+                }
+
+                @Override
+                public boolean isRequired() {
+                    return true;
+                }
+
+                @Override
+                public void rejected() {
+                }
+            });
+            if (pending && QCMeasurement.INSTANCE.isScheduledUploads()) {
+                QCMeasurement.INSTANCE.getUploadScheduler().schedule((Context) o, SCHEDULED_UPLOAD_DELAY);
+            }
+        } else if (notificationName.equals(QCOptOutUtility.QC_NOTIF_OPT_OUT_CHANGED)) {
+            if ((Boolean) o) {
+                m_handler.removeCallbacks(m_flushRunnable);
+                m_buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * @return true if an upload was started
+     */
+    boolean uploadEvents(QCPolicy policy, boolean forced) {
 
         //if we don't have a policy or are blacked out then we cant send this data
         if (policy.policyIsLoaded() && !policy.isBlackedOut()) {
-            AsyncTask<Void, Void, Integer> uploadTask = newUploadTask(policy);
+            //an attempt without a usable network would only read the batch again for nothing
+            if (!canUseNetwork(QCMeasurement.INSTANCE.getAppContext(), forced)) {
+                m_draining = false;
+                waitForNetwork(policy, forced);
+                return false;
+            }
+            //after failed uploads wait for the backoff instead of trying again with every new event
+            long now = System.currentTimeMillis();
+            if (!m_backoff.canUpload(now, QCReachability.transportType(QCMeasurement.INSTANCE.getAppContext()))) {
+                scheduleRetry(policy, m_backoff.getRetryDelay(now));
+                return false;
+            }
+            QCAsyncTask<Void, Integer> uploadTask = newUploadTask(policy);
             uploadTask.execute();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends every stored event, one batch after another, for {@link QCUploadReceiver}.  If the backlog cannot all be
+     * sent another scheduled upload is asked for.
+     *
+     * @param done run on the main thread once the uploads are over and the sent events are deleted
+     */
+    void uploadScheduled(QCPolicy policy, Runnable done) {
+        if (m_scheduledRunDone != null) {
+            m_scheduledRunDone.run();
+        }
+        m_scheduledRunDone = done;
+        m_draining = true;
+        //an upload that is already running carries on draining and finishes the run
+        if (!m_uploading && !uploadEvents(policy, false)) {
+            finishScheduledUpload(true);
+        }
+    }
+
+    private void finishScheduledUpload(boolean incomplete) {
+        m_draining = false;
+        final Runnable done = m_scheduledRunDone;
+        if (done == null) return;
+        m_scheduledRunDone = null;
+
+        if (incomplete && m_eventCount > 0 && QCMeasurement.INSTANCE.isScheduledUploads()) {
+            QCMeasurement.INSTANCE.getUploadScheduler().schedule(QCMeasurement.INSTANCE.getAppContext(), SCHEDULED_UPLOAD_RETRY_DELAY);
+        }
+        //there is no app stop in a process started for the upload, so the sent events are deleted here
+        QCExecutor.INSTANCE.execute(new QCExecutor.Task() {
+            @Override
+            public void run() {
+                try {
+                    removeAcknowledgedEvents(m_database.getWritableDatabase());
+                } catch (Throwable t) {
+                    QCLog.e(TAG, "DB remove error", t);
+                } finally {
+                    m_database.close();
+                    QCExecutor.INSTANCE.postToMain(done);
+                }
+            }
+
+            @Override
+            public boolean isRequired() {
+                return true;
+            }
+
+            @Override
+            public void rejected() {
+            }
+        });
+    }
+
+    private boolean canUseNetwork(Context context, boolean forced) {
+        if (!QCReachability.isConnected(context)) return false;
+        return forced || !QCMeasurement.INSTANCE.isUnmeteredUploadsOnly() || m_eventCount >= BACKLOG_LIMIT
+                || QCReachability.isUnmetered(context);
+    }
+
+    private void waitForNetwork(QCPolicy policy, boolean forced) {
+        if (m_waitingPolicy == null) {
+            QCLog.i(TAG, "No usable network, waiting for connectivity to upload.");
+            m_waitingDisconnected = !QCReachability.isConnected(QCMeasurement.INSTANCE.getAppContext());
+            QCMeasurement.INSTANCE.getAppContext().registerReceiver(m_connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+        m_waitingPolicy = policy;
+        //once any waiting upload was forced the batch goes out as soon as there is a connection
+        m_waitingForced = m_waitingForced || forced;
+    }
+
+    private QCPolicy stopWaitingForNetwork() {
+        QCPolicy policy = m_waitingPolicy;
+        if (policy != null) {
+            QCMeasurement.INSTANCE.getAppContext().unregisterReceiver(m_connectivityReceiver);
+            m_waitingPolicy = null;
+            m_waitingForced = false;
+        }
+        return policy;
+    }
+
+    private void scheduleRetry(QCPolicy policy, long delay) {
+        m_retryPolicy = policy;
+        m_handler.removeCallbacks(m_retryRunnable);
+        m_handler.postDelayed(m_retryRunnable, delay);
+    }
+
+    //an acknowledged lease that is never removed, because the process dies first, expires and is sent again under
+    //the same upload id, which the server already has
+    private void removeAcknowledgedEvents(SQLiteDatabase db) {
+        List<String> leaseIds;
+        synchronized (m_acknowledgedLeases) {
+            if (m_acknowledgedLeases.isEmpty()) return;
+            leaseIds = new ArrayList<String>(m_acknowledgedLeases);
+            m_acknowledgedLeases.clear();
+        }
+        if (!m_database.removeLeasedEvents(db, leaseIds)) {
+            QCLog.e(TAG, "Failed to remove the events of " + leaseIds.size() + " uploads");
         }
     }
 
     void setUploadCount(int uploadCount) {
-        m_uploadCount = Math.max(MIN_UPLOAD_SIZE, Math.min(m_maxUploadCount, uploadCount));
+        m_uploadCount = Math.max(m_sizer.getMinSize(), Math.min(m_sizer.getMaxSize(), uploadCount));
     }
 
     void setMaxUploadCount(int maxUploadCount) {
-        this.m_maxUploadCount = Math.max(MIN_UPLOAD_SIZE, maxUploadCount);
+        m_sizer.setMaxSize(maxUploadCount);
     }
 
-    AsyncTask<QCEvent, Void, Integer> newDBTask(final QCPolicy policy) {
-        return new AsyncTask<QCEvent, Void, Integer>() {
+    QCAsyncTask<QCEvent, Integer> newDBTask(final QCPolicy policy) {
+        return new QCAsyncTask<QCEvent, Integer>() {
             private boolean forceUpload;
+            private boolean errorUpload;
+            private int evicted;
+
+            @Override
+            protected boolean isRequired() {
+                return true;
+            }
 
             @Override
             protected Integer doInBackground(QCEvent... qcEvents) {
-                forceUpload = qcEvents[0].shouldForceUpload();
+                for (QCEvent event : qcEvents) {
+                    if (event.shouldForceUpload()) {
+                        forceUpload = true;
+                        errorUpload |= QCEvent.QC_EVENT_SDKERROR.equals(event.getParameters().get(QCEvent.QC_EVENT_KEY));
+                    }
+                }
                 int written = 0;
                 try {
                     written = m_database.writeEvents(Arrays.asList(qcEvents));
+                    evicted = m_database.evictEvents(QCMeasurement.INSTANCE.getMaxStoredEvents(),
+                            QCMeasurement.INSTANCE.getMaxStoredBytes(), QCMeasurement.INSTANCE.getEvictionPolicy());
                 } catch (SQLiteDatabaseCorruptException dbc) {
                     QCLog.e(TAG, "DB Write error", dbc);
                     m_database.deleteDB(QCMeasurement.INSTANCE.getAppContext());
@@ -98,22 +356,42 @@ class QCDataManager {
             @Override
             protected void onPostExecute(Integer written) {
                 if (!this.isCancelled() && written > 0) {
-                    m_eventCount += written;
+                    m_eventCount = Math.max(0, m_eventCount + written - evicted);
+                    if (evicted > 0) {
+                        QCMeasurement.INSTANCE.logSDKError("events-evicted", evicted + " stored events were dropped",
+                                QCMeasurement.INSTANCE.getEvictionPolicy().name());
+                    }
                     QCLog.i(TAG, "Successfully wrote " + written + " events! total: " + m_eventCount);
-                    if (policy != null && (forceUpload || (m_eventCount >= m_uploadCount && !m_uploading))) {
-                        uploadEvents(policy);
+                    //with scheduled uploads routine batches, and the pauses and closes that end a session, wait for the
+                    //scheduled upload after the session.  Only errors still go out right away
+                    boolean scheduled = QCMeasurement.INSTANCE.isScheduledUploads();
+                    boolean forced = scheduled ? errorUpload : forceUpload;
+                    boolean routine = !scheduled || m_eventCount >= BACKLOG_LIMIT;
+                    if (policy != null && (forced || (routine && m_eventCount >= m_uploadCount && !m_uploading))) {
+                        uploadEvents(policy, forced);
                     }
                 }else{
                     QCLog.w(TAG, "DB Write canceled or nothing written");
                 }
             }
+
+            @Override
+            protected void onCancelled() {
+                QCLog.w(TAG, "DB Write canceled");
+            }
         };
     }
 
-    AsyncTask<Void, Void, Integer> newUploadTask(final QCPolicy policy) {
-        return new AsyncTask<Void, Void, Integer>() {
+    QCAsyncTask<Void, Integer> newUploadTask(final QCPolicy policy) {
+        return new QCAsyncTask<Void, Integer>() {
             private String uploadId;
             private long startTime;
+            private boolean failed;
+
+            @Override
+            protected boolean isRequired() {
+                return true;
+            }
 
             @Override
             protected void onPreExecute() {
@@ -125,34 +403,55 @@ class QCDataManager {
             protected Integer doInBackground(Void... voids) {
                 QCLog.i(TAG, "Starting upload...");
                 int removed = 0;
-                synchronized (this) {
-                    try {
-                            SQLiteDatabase db = m_database.getWritableDatabase();
-                            List<QCEvent> send = m_database.getEvents(db, m_maxUploadCount, policy);
-                            uploadId = m_uploader.synchronousUploadEvents(send);
-                            if (uploadId != null) {
-                                boolean success = m_database.removeEvents(db, send);
-                                if(success){
-                                    removed = send.size();
-                                    QCLog.i(TAG, "Successfully upload " + removed + " events!");
-                                }else{
-                                    QCLog.e(TAG, "Failed to remove " + send.size() + " events");
-                                }
-                            } else {
-                                QCLog.e(TAG, "Failed to upload " + send.size() + " events");
+                try {
+                    SQLiteDatabase db = m_database.getWritableDatabase();
+                    removeAcknowledgedEvents(db);
+                    String networkType = QCReachability.networkType(QCMeasurement.INSTANCE.getAppContext());
+                    int batchSize = m_sizer.nextBatchSize(networkType, policy);
+                    //the policy can keep a flood of app events from filling every batch
+                    int lowPriorityBatchSize = batchSize;
+                    if (policy.getMaxLowPriorityUploadSize() != null) {
+                        lowPriorityBatchSize = Math.min(batchSize, policy.getMaxLowPriorityUploadSize());
+                    }
+                    //the lease keeps any other upload from reading the same events, and a batch that was not accepted
+                    //is sent again under the same upload id so the server can tell it apart from new data
+                    long now = System.currentTimeMillis();
+                    String leaseId = m_database.leaseEvents(db, QCUtility.generateUniqueId(), batchSize, lowPriorityBatchSize,
+                            now, now + UPLOAD_LEASE_DURATION);
+                    if (leaseId != null) {
+                        QCUploadEncoder encoder = new QCUploadEncoder(leaseId, m_database, db, policy);
+                        long uploadStart = System.currentTimeMillis();
+                        uploadId = m_uploader.synchronousUploadEvents(encoder, policy.shouldGzipUploads());
+                        int sent = encoder.getEventCount();
+                        if (uploadId != null) {
+                            m_sizer.uploadSucceeded(sent, System.currentTimeMillis() - uploadStart);
+                            m_backoff.uploadSucceeded();
+                            //leased events are invisible to every reader, so deleting them can wait
+                            synchronized (m_acknowledgedLeases) {
+                                m_acknowledgedLeases.add(leaseId);
                             }
-                    } catch (SQLiteDatabaseCorruptException dbc) {
-                        m_database.deleteDB(QCMeasurement.INSTANCE.getAppContext());
-                        QCLog.e(TAG, "DB upload error", dbc);
-                    } catch (OutOfMemoryError oom) {
-                        QCLog.e(TAG, "DB upload error", oom);
-                        System.gc();
-                    } catch (Throwable t) {
-                        //cancel this call and move on
-                        QCLog.e(TAG, "DB upload error", t);
-                    } finally {
-                        m_database.close();
+                            removed = sent;
+                            QCLog.i(TAG, "Successfully upload " + removed + " events!");
+                        } else {
+                            m_database.expireLease(db, leaseId);
+                            m_sizer.uploadFailed();
+                            m_backoff.uploadFailed(System.currentTimeMillis(),
+                                    QCReachability.transportType(QCMeasurement.INSTANCE.getAppContext()));
+                            failed = true;
+                            QCLog.e(TAG, "Failed to upload " + sent + " events");
+                        }
                     }
+                } catch (SQLiteDatabaseCorruptException dbc) {
+                    m_database.deleteDB(QCMeasurement.INSTANCE.getAppContext());
+                    QCLog.e(TAG, "DB upload error", dbc);
+                } catch (OutOfMemoryError oom) {
+                    QCLog.e(TAG, "DB upload error", oom);
+                    System.gc();
+                } catch (Throwable t) {
+                    //cancel this call and move on
+                    QCLog.e(TAG, "DB upload error", t);
+                } finally {
+                    m_database.close();
                 }
                 return removed;
             }
@@ -166,6 +465,31 @@ class QCDataManager {
                     QCLog.w(TAG, "DB upload canceled or nothing removed");
                 }
                 m_uploading = false;
+                if (failed) {
+                    m_draining = false;
+                    if (m_scheduledRunDone != null) {
+                        finishScheduledUpload(true);
+                    } else {
+                        scheduleRetry(policy, m_backoff.getRetryDelay(System.currentTimeMillis()));
+                    }
+                } else if (m_draining) {
+                    if (removed > 0 && m_eventCount > 0) {
+                        if (!uploadEvents(policy, false)) {
+                            finishScheduledUpload(true);
+                        }
+                    } else {
+                        m_draining = false;
+                        finishScheduledUpload(m_eventCount > 0);
+                    }
+                }
+            }
+
+            @Override
+            protected void onCancelled() {
+                QCLog.w(TAG, "DB upload canceled");
+                m_uploading = false;
+                m_draining = false;
+                finishScheduledUpload(true);
             }
         };
     }
@@ -11,20 +11,13 @@
 
 package com.quantcast.measurement.service;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HTTP;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.Collection;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 class QCDataUploader {
 
@@ -36,43 +29,50 @@ class QCDataUploader {
 
     private static final String UPLOAD_URL_WITHOUT_SCHEME = "m.quantcount.com/mobile";
 
-    //this method is synchronous.  Be sure to call from an AsyncTask or other background Thread
-    String synchronousUploadEvents(Collection<QCEvent> events) {
-        if (events == null || events.isEmpty()) return null;
+    //this method is synchronous.  Be sure to call from the QCExecutor or other background Thread
+    String synchronousUploadEvents(final QCUploadEncoder encoder, final boolean gzip) {
+        if (encoder == null) return null;
 
-        String uploadId = QCUtility.generateUniqueId();
+        String uploadId = encoder.getUploadId();
 
-        JSONObject upload = new JSONObject();
-        try {
-            upload.put(QC_UPLOAD_ID_KEY, uploadId);
-            upload.put(QC_QCV_KEY, QCUtility.API_VERSION);
-            JSONArray event = new JSONArray();
-            for (QCEvent e : events) {
-                event.put(new JSONObject(e.getParameters()));
-            }
-            upload.put(QC_EVENTS_KEY, event);
-        } catch (JSONException e) {
-            QCLog.e(TAG, "Error while encoding json.");
-            return null;
-        }
-
-        int code = HttpStatus.SC_BAD_REQUEST;
+        int code = HttpURLConnection.HTTP_BAD_REQUEST;
         String url = QCUtility.addScheme(UPLOAD_URL_WITHOUT_SCHEME);
-        final DefaultHttpClient defaultHttpClient = new DefaultHttpClient();
-        final BasicHttpContext localContext = new BasicHttpContext();
 
         try {
-            HttpPost post = new HttpPost(url);
-            post.setHeader("Content-Type", "application/json");
-            StringEntity se = new StringEntity(upload.toString(), HTTP.ASCII);
-            post.setEntity(se);
-
-            HttpParams params = new BasicHttpParams();
-            params.setBooleanParameter("http.protocol.expect-continue", false);
-            post.setParams(params);
-
-            HttpResponse response = defaultHttpClient.execute(post, localContext);
-            code = response.getStatusLine().getStatusCode();
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Content-Type", "application/json");
+            if (gzip) {
+                headers.put("Content-Encoding", "gzip");
+            }
+            //the body is encoded from the database while it is being sent
+            QCTransport.Body body = new QCTransport.Body() {
+                @Override
+                public long getContentLength() {
+                    return -1;
+                }
+
+                @Override
+                public void writeTo(OutputStream outputStream) throws IOException {
+                    if (gzip) {
+                        CountingOutputStream compressed = new CountingOutputStream(outputStream);
+                        GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+                        try {
+                            CountingOutputStream raw = new CountingOutputStream(gzipStream);
+                            encoder.writeTo(raw);
+                            gzipStream.finish();
+                            compressed.flush();
+                            QCLog.i(TAG, "Compressed upload from " + raw.getCount() + " to " + compressed.getCount() + " bytes");
+                        } finally {
+                            //frees the native deflater, finish alone does not
+                            gzipStream.close();
+                        }
+                    } else {
+                        encoder.writeTo(outputStream);
+                    }
+                }
+            };
+
+            code = QCMeasurement.INSTANCE.getTransport().post(url, headers, body);
         } catch (Exception e) {
             QCLog.e(TAG, "Could not upload events", e);
             QCMeasurement.INSTANCE.logSDKError("json-upload-failure", e.getMessage(), null);
@@ -90,5 +90,35 @@ class QCDataUploader {
         return (code >= 200) && (code <= 299);
     }
 
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long m_count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            m_count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            m_count += len;
+        }
+
+        long getCount() {
+            return m_count;
+        }
+
+        //the stream underneath belongs to the transport, which closes it itself
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
 
 }
@@ -18,39 +18,61 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
-import android.text.TextUtils;
 
-import java.util.ArrayList;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 
 class QCDatabaseDAO extends SQLiteOpenHelper {
 
     private static final QCLog.Tag TAG = new QCLog.Tag(QCDatabaseDAO.class);
 
     static final String NAME = "Quantcast.db";
-    private static final int VERSION = 2;
+    private static final int VERSION = 3;
 
-    // Table that indexes events, one per event.
+    // Table of events, one row per event.
+    // The event parameters are serialized into a single JSON blob so that writing or reading an event touches one row.
     static final String EVENTS_TABLE = "events";
     static final String EVENTS_COLUMN_ID = "id";            // primary key
-    static final String EVENTS_COLUMN_DOH = "doh";          // tables must have at least one column; this doesn't do anything other than that
-
-    // Table of event parameters
-    // Each event has a unique ID, which is the primary key (rowid) in the events table.
-    static final String EVENT_PARAMETERS_TABLE = "event";
-    static final String EVENT_PARAMETERS_COLUMN_EVENT_ID = "eventid";
-    static final String EVENT_PARAMETERS_COLUMN_NAME = "name";
-    static final String EVENT_PARAMETERS_COLUMN_VALUE = "value";
-
-    static final String EVENT_PARAMETERS_EVENT_ID_INDEX_NAME = "event_id_idx";
+    static final String EVENTS_COLUMN_DATA = "data";        // UTF-8 encoded JSON object of the event parameters
+    static final String EVENTS_COLUMN_TYPE = "type";        // value of the event parameter
+    static final String EVENTS_COLUMN_PRIORITY = "priority"; // one of the QCEvent priorities, higher is read first
+    static final String EVENTS_COLUMN_LEASE = "lease";      // id of the upload the event is being sent with, null if none
+    static final String EVENTS_COLUMN_LEASE_EXPIRY = "lease_expiry"; // time in milliseconds after which the lease is void
+    private static final String EVENTS_PRIORITY_INDEX_NAME = "events_priority_idx";
+    private static final String EVENTS_LEASE_INDEX_NAME = "events_lease_idx";
+
+    private static final String UNLEASED_SELECTION = EVENTS_COLUMN_LEASE + " is null";
+    private static final String LOW_PRIORITY_SELECTION = UNLEASED_SELECTION + " and " + EVENTS_COLUMN_PRIORITY + " = " + QCEvent.PRIORITY_LOW;
+    private static final String NOT_LOW_PRIORITY_SELECTION = UNLEASED_SELECTION + " and " + EVENTS_COLUMN_PRIORITY + " > " + QCEvent.PRIORITY_LOW;
+    private static final String LEASE_SELECTION = EVENTS_COLUMN_LEASE + " = ?";
+    private static final String NOT_HIGH_PRIORITY_SELECTION = UNLEASED_SELECTION + " and " + EVENTS_COLUMN_PRIORITY + " < " + QCEvent.PRIORITY_HIGH;
+    //evicting down to a fraction of the limit keeps every following write from evicting again
+    private static final int EVICTION_TARGET_PERCENT = 90;
+
+    // Tables used up to version 2, only referenced when upgrading.
+    // Events were indexed in the events table and every parameter had its own row in the event table.
+    private static final String LEGACY_EVENTS_TABLE = "events_v2";
+    private static final String LEGACY_EVENT_PARAMETERS_TABLE = "event";
+    private static final String LEGACY_EVENT_PARAMETERS_COLUMN_EVENT_ID = "eventid";
+    private static final String LEGACY_EVENT_PARAMETERS_COLUMN_NAME = "name";
+    private static final String LEGACY_EVENT_PARAMETERS_COLUMN_VALUE = "value";
+    private static final String LEGACY_EVENT_PARAMETERS_EVENT_ID_INDEX_NAME = "event_id_idx";
+
+    private static final String DATA_CHARSET = "UTF-8";
 
     private SQLiteDatabase m_openDB;
     private int m_numOpenDBs;
 
+    //running totals of the events table so the storage limits can be checked without scanning it, -1 until counted
+    private long m_storedEvents = -1;
+    private long m_storedBytes = -1;
+
     QCDatabaseDAO(Context context) {
         super(context, NAME, null, VERSION);
         m_numOpenDBs = 0;
@@ -61,22 +83,7 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         db.beginTransaction();
 
         try {
-            db.execSQL("PRAGMA foreign_keys = ON;");
-
-            db.execSQL("create table " + EVENTS_TABLE + " ("
-                    + EVENTS_COLUMN_ID + " integer primary key autoincrement,"
-                    + EVENTS_COLUMN_DOH + " integer"
-                    + ");");
-
-            db.execSQL("create table " + EVENT_PARAMETERS_TABLE + " ("
-                    + EVENT_PARAMETERS_COLUMN_EVENT_ID + " integer,"
-                    + EVENT_PARAMETERS_COLUMN_NAME + " varchar not null,"
-                    + EVENT_PARAMETERS_COLUMN_VALUE + " varchar not null,"
-                    + "FOREIGN KEY(" + EVENT_PARAMETERS_COLUMN_EVENT_ID + ") REFERENCES " + EVENTS_TABLE + "(" + EVENTS_COLUMN_ID + ")"
-                    + ");");
-
-            addEventIdIndex(db);
-
+            createEventsTable(db);
             db.setTransactionSuccessful();
         } catch (SQLException e) {
             QCLog.e(TAG, "Unable to create events related tables", e);
@@ -90,8 +97,9 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         return getWritableDatabase();
     }
 
+    //the open count is shared by every thread using this helper
     @Override
-    public SQLiteDatabase getWritableDatabase(){
+    public synchronized SQLiteDatabase getWritableDatabase(){
         if(m_openDB == null || !m_openDB.isOpen()){
             m_numOpenDBs = 0;
             m_openDB = super.getWritableDatabase();
@@ -101,7 +109,7 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
     }
 
     @Override
-    public void close(){
+    public synchronized void close(){
         m_numOpenDBs--;
         if(m_numOpenDBs == 0){
             super.close();
@@ -113,97 +121,275 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         db.beginTransaction();
         try {
-            if (oldVersion <= 1) {
-                addEventIdIndex(db);
+            //every earlier version kept one row per event parameter
+            if (oldVersion <= 2) {
+                migrateParameterTables(db);
             }
+            db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
     }
 
-    private static void addEventIdIndex(SQLiteDatabase db) {
-        String createIndex = "CREATE INDEX " + EVENT_PARAMETERS_EVENT_ID_INDEX_NAME + " ON " + EVENT_PARAMETERS_TABLE + " (" + EVENT_PARAMETERS_COLUMN_EVENT_ID + ")";
-        db.execSQL(createIndex);
+    private static void createEventsTable(SQLiteDatabase db) {
+        db.execSQL("create table " + EVENTS_TABLE + " ("
+                + EVENTS_COLUMN_ID + " integer primary key autoincrement,"
+                + EVENTS_COLUMN_DATA + " blob not null,"
+                + EVENTS_COLUMN_TYPE + " text,"
+                + EVENTS_COLUMN_PRIORITY + " integer not null default " + QCEvent.PRIORITY_NORMAL + ","
+                + EVENTS_COLUMN_LEASE + " text,"
+                + EVENTS_COLUMN_LEASE_EXPIRY + " integer not null default 0"
+                + ");");
+        createPriorityIndex(db);
+        createLeaseIndex(db);
     }
 
+    private static void createPriorityIndex(SQLiteDatabase db) {
+        db.execSQL("create index " + EVENTS_PRIORITY_INDEX_NAME + " on " + EVENTS_TABLE + " ("
+                + EVENTS_COLUMN_PRIORITY + "," + EVENTS_COLUMN_ID + ");");
+    }
 
-    synchronized List<QCEvent> getEvents(int maxToRetrieve, QCPolicy policy) {
-        SQLiteDatabase db = getReadableDatabase();
-        List<QCEvent> retval = getEvents(db, maxToRetrieve, policy);
-        close();
-        return retval;
+    private static void createLeaseIndex(SQLiteDatabase db) {
+        db.execSQL("create index " + EVENTS_LEASE_INDEX_NAME + " on " + EVENTS_TABLE + " (" + EVENTS_COLUMN_LEASE + ");");
     }
 
-    synchronized List<QCEvent> getEvents(SQLiteDatabase db, int maxToRetrieve, QCPolicy policy) {
-        ArrayList<QCEvent> events = null;
+    //moves every event of the version 2 events/event tables into a single row, keeping the original ids and order
+    private static void migrateParameterTables(SQLiteDatabase db) {
+        db.execSQL("alter table " + EVENTS_TABLE + " rename to " + LEGACY_EVENTS_TABLE + ";");
+        createEventsTable(db);
+
+        final SQLiteStatement statement = db.compileStatement("INSERT INTO " + EVENTS_TABLE + " ( "
+                + EVENTS_COLUMN_ID + "," + EVENTS_COLUMN_DATA + "," + EVENTS_COLUMN_TYPE + "," + EVENTS_COLUMN_PRIORITY
+                + " ) VALUES ( ? , ? , ? , ? )");
+        String[] columns = new String[]{
+                LEGACY_EVENT_PARAMETERS_COLUMN_EVENT_ID,
+                LEGACY_EVENT_PARAMETERS_COLUMN_NAME,
+                LEGACY_EVENT_PARAMETERS_COLUMN_VALUE
+        };
+        Cursor cursor = db.query(LEGACY_EVENT_PARAMETERS_TABLE, columns, null, null, null, null, LEGACY_EVENT_PARAMETERS_COLUMN_EVENT_ID);
+        int migrated = 0;
+        try {
+            if (cursor.moveToFirst()) {
+                long eventId = cursor.getLong(0);
+                Map<String, String> params = new HashMap<String, String>();
+                do {
+                    long rowEventId = cursor.getLong(0);
+                    if (rowEventId != eventId) {
+                        insertEvent(statement, eventId, params);
+                        migrated++;
+                        eventId = rowEventId;
+                        params = new HashMap<String, String>();
+                    }
+                    params.put(cursor.getString(1), cursor.getString(2));
+                } while (cursor.moveToNext());
+                insertEvent(statement, eventId, params);
+                migrated++;
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+
+        db.execSQL("drop index if exists " + LEGACY_EVENT_PARAMETERS_EVENT_ID_INDEX_NAME + ";");
+        db.execSQL("drop table if exists " + LEGACY_EVENT_PARAMETERS_TABLE + ";");
+        db.execSQL("drop table if exists " + LEGACY_EVENTS_TABLE + ";");
+        QCLog.i(TAG, "Migrated " + migrated + " events to single row storage.");
+    }
+
+    private static void insertEvent(SQLiteStatement statement, long eventId, Map<String, String> params) {
+        statement.clearBindings();
+        statement.bindLong(1, eventId);
+        statement.bindBlob(2, serializeParameters(params));
+        bindType(statement, 3, params);
+        statement.bindLong(4, QCEvent.priorityForType(params.get(QCEvent.QC_EVENT_KEY)));
+        statement.executeInsert();
+    }
+
+    private static void bindType(SQLiteStatement statement, int index, Map<String, String> params) {
+        String type = params.get(QCEvent.QC_EVENT_KEY);
+        if (type != null) {
+            statement.bindString(index, type);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    static byte[] serializeParameters(Map<String, String> params) {
+        try {
+            return new JSONObject(params).toString().getBytes(DATA_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            //every platform supports UTF-8 so this should never happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Map<String, String> deserializeParameters(byte[] data) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (data != null) {
+            try {
+                JSONObject json = new JSONObject(new String(data, DATA_CHARSET));
+                Iterator<?> keys = json.keys();
+                while (keys.hasNext()) {
+                    String key = (String) keys.next();
+                    params.put(key, json.getString(key));
+                }
+            } catch (JSONException e) {
+                QCLog.e(TAG, "Unable to read stored event.", e);
+            } catch (UnsupportedEncodingException e) {
+                QCLog.e(TAG, "Unable to read stored event.", e);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Leases a batch of events to an upload.  Leased events are skipped by every other reader, and keep their lease id
+     * until they are removed, so every attempt at sending a batch uses the same upload id.
+     * <p/>
+     * A batch whose lease has expired, because its upload failed or the process died during it, is leased again as it
+     * is, under its old id.  Only when there is no such batch are up to maxToLease new events leased under newLeaseId,
+     * highest priority first and oldest first within a priority.  Low priority events only fill up what is left of the
+     * batch, and at most maxLowPriority of them are leased.
+     *
+     * @return the id the events were leased under, or null if there was nothing to lease
+     */
+    synchronized String leaseEvents(SQLiteDatabase db, String newLeaseId, int maxToLease, int maxLowPriority, long now, long expiry) {
+        String leaseId = null;
         if (db != null && db.isOpen()) {
-            events = new ArrayList<QCEvent>();
-
-            if (maxToRetrieve > 0) {
-                String[] columns = new String[]{EVENTS_COLUMN_ID};
-
-                Cursor cursor = db.query(EVENTS_TABLE, columns, null, null, null, null, EVENTS_COLUMN_ID, Integer.toString(maxToRetrieve));
-
-                if (cursor.moveToFirst()) {
-                    do {
-                        long eventId = cursor.getLong(0);
-                        String[] eventColumns = new String[]{
-                                QCDatabaseDAO.EVENT_PARAMETERS_COLUMN_NAME,
-                                QCDatabaseDAO.EVENT_PARAMETERS_COLUMN_VALUE
-                        };
-                        String selection = QCDatabaseDAO.EVENT_PARAMETERS_COLUMN_EVENT_ID + "=?";
-                        String[] selectionArgs = new String[]{Long.toString(eventId)};
-
-                        Cursor eventCursor = db.query(QCDatabaseDAO.EVENT_PARAMETERS_TABLE,
-                                eventColumns,
-                                selection, selectionArgs,
-                                null, null, null);
-
-                        Map<String, String> params = new HashMap<String, String>();
-                        if (eventCursor.moveToFirst()) {
-                            do {
-                                params.put(eventCursor.getString(0), eventCursor.getString(1));
-                            } while (eventCursor.moveToNext());
-                        }
+            db.beginTransaction();
+            try {
+                //an expiry later than that of a lease taken now means the clock was turned back
+                Cursor cursor = db.query(EVENTS_TABLE, new String[]{EVENTS_COLUMN_LEASE}, EVENTS_COLUMN_LEASE + " is not null and ("
+                        + EVENTS_COLUMN_LEASE_EXPIRY + " <= ? or " + EVENTS_COLUMN_LEASE_EXPIRY + " > ?)",
+                        new String[]{Long.toString(now), Long.toString(expiry)}, null, null, EVENTS_COLUMN_ID, "1");
+                try {
+                    if (cursor.moveToFirst()) {
+                        leaseId = cursor.getString(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
 
-                        eventCursor.close();
-                        events.add(QCEvent.dataBaseEventWithPolicyCheck(eventId, params, policy));
-                    } while (cursor.moveToNext());
+                if (leaseId != null) {
+                    QCLog.i(TAG, "Resending upload " + leaseId + ".");
+                    db.execSQL("update " + EVENTS_TABLE + " set " + EVENTS_COLUMN_LEASE_EXPIRY + " = ? where " + LEASE_SELECTION + ";",
+                            new Object[]{expiry, leaseId});
+                } else if (maxToLease > 0) {
+                    leaseFirst(db, newLeaseId, expiry, NOT_LOW_PRIORITY_SELECTION, EVENTS_COLUMN_PRIORITY + " desc," + EVENTS_COLUMN_ID, maxToLease);
+                    long leased = countLeased(db, newLeaseId);
+                    long lowPriorityLimit = Math.min(maxToLease - leased, maxLowPriority);
+                    if (lowPriorityLimit > 0) {
+                        leaseFirst(db, newLeaseId, expiry, LOW_PRIORITY_SELECTION, EVENTS_COLUMN_ID, lowPriorityLimit);
+                        leased = countLeased(db, newLeaseId);
+                    }
+                    if (leased > 0) {
+                        leaseId = newLeaseId;
+                    }
                 }
-                cursor.close();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
+        } else {
+            QCLog.e(TAG, "Database could not be opened.(8)");
+        }
+        return leaseId;
+    }
+
+    private static void leaseFirst(SQLiteDatabase db, String leaseId, long expiry, String selection, String orderBy, long limit) {
+        db.execSQL("update " + EVENTS_TABLE + " set " + EVENTS_COLUMN_LEASE + " = ?, " + EVENTS_COLUMN_LEASE_EXPIRY + " = ? where "
+                + EVENTS_COLUMN_ID + " in (select " + EVENTS_COLUMN_ID + " from " + EVENTS_TABLE + " where " + selection
+                + " order by " + orderBy + " limit " + limit + ");", new Object[]{leaseId, expiry});
+    }
+
+    private static long countLeased(SQLiteDatabase db, String leaseId) {
+        return DatabaseUtils.longForQuery(db, "select count(*) from " + EVENTS_TABLE + " where " + LEASE_SELECTION, new String[]{leaseId});
+    }
+
+    /**
+     * Streams the events leased to an upload to the callback, highest priority first and oldest first within a priority.
+     *
+     * @return the number of rows read
+     */
+    synchronized int readLeasedEvents(SQLiteDatabase db, String leaseId, QCPolicy policy, EventCallback callback) {
+        int read = 0;
+        if (db != null && db.isOpen()) {
+            read = readRows(db, LEASE_SELECTION, new String[]{leaseId}, EVENTS_COLUMN_PRIORITY + " desc," + EVENTS_COLUMN_ID,
+                    null, policy, callback);
         } else {
             QCLog.e(TAG, "Database could not be opened.(1)");
         }
-        return events;
+        return read;
     }
 
-    synchronized boolean removeEvents(Collection<QCEvent> events) {
-        SQLiteDatabase db = getWritableDatabase();
-        boolean success = removeEvents(db, events);
-        close();
-        return success;
+    /**
+     * Ends the lease on a batch whose upload failed, so the next upload sends it again under the same id.
+     */
+    synchronized void expireLease(SQLiteDatabase db, String leaseId) {
+        if (db != null && db.isOpen()) {
+            db.execSQL("update " + EVENTS_TABLE + " set " + EVENTS_COLUMN_LEASE_EXPIRY + " = 0 where " + LEASE_SELECTION + ";",
+                    new Object[]{leaseId});
+        } else {
+            QCLog.e(TAG, "Database could not be opened.(9)");
+        }
+    }
+
+    private static int readRows(SQLiteDatabase db, String selection, String[] selectionArgs, String orderBy, String limit,
+                                QCPolicy policy, EventCallback callback) {
+        int read = 0;
+        String[] columns = new String[]{EVENTS_COLUMN_ID, EVENTS_COLUMN_DATA};
+        Cursor cursor = db.query(EVENTS_TABLE, columns, selection, selectionArgs, null, null, orderBy, limit);
+        try {
+            if (cursor.moveToFirst()) {
+                do {
+                    long eventId = cursor.getLong(0);
+                    Map<String, String> params = deserializeParameters(cursor.getBlob(1));
+                    callback.eventRead(eventId, QCEvent.dataBaseEventWithPolicyCheck(eventId, params, policy));
+                    read++;
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            cursor.close();
+        }
+        return read;
     }
 
-    synchronized boolean removeEvents(SQLiteDatabase db, Collection<QCEvent> events) {
+    /**
+     * Deletes the events of every given lease, once the server has accepted their uploads.  Each lease is a single
+     * lookup in the lease index with the id bound to the statement, so the cost does not grow with the size of a batch.
+     */
+    synchronized boolean removeLeasedEvents(SQLiteDatabase db, Collection<String> leaseIds) {
         boolean removed = false;
         if (db != null && db.isOpen()) {
-            if (!events.isEmpty()) {
-                List<String> eventIds = new ArrayList<String>(events.size());
-                for (QCEvent event : events) {
-                    eventIds.add(event.getEventId());
-                }
-                String eventIdsString = TextUtils.join(",", eventIds);
-
+            if (!leaseIds.isEmpty()) {
+                final SQLiteStatement statement = db.compileStatement("DELETE FROM " + EVENTS_TABLE + " WHERE " + LEASE_SELECTION);
+                long removedEvents = 0;
+                long removedBytes = 0;
                 db.beginTransaction();
                 try {
-                    db.execSQL(generateDeleteClause(EVENTS_TABLE, EVENTS_COLUMN_ID, eventIdsString));
-                    db.execSQL(generateDeleteClause(EVENT_PARAMETERS_TABLE, EVENT_PARAMETERS_COLUMN_EVENT_ID, eventIdsString));
+                    for (String leaseId : leaseIds) {
+                        //the lease index makes the size of a batch as cheap to look up as the batch itself
+                        Cursor cursor = db.rawQuery("select count(*), ifnull(sum(length(" + EVENTS_COLUMN_DATA + ")), 0) from "
+                                + EVENTS_TABLE + " where " + LEASE_SELECTION, new String[]{leaseId});
+                        try {
+                            if (cursor.moveToFirst()) {
+                                removedEvents += cursor.getLong(0);
+                                removedBytes += cursor.getLong(1);
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                        statement.clearBindings();
+                        statement.bindString(1, leaseId);
+                        statement.execute();
+                    }
                     db.setTransactionSuccessful();
+                    removed = true;
                 } finally {
                     db.endTransaction();
-                    removed = true;
+                    statement.close();
                 }
+                addToTotals(-removedEvents, -removedBytes);
             }
         } else {
             QCLog.e(TAG, "Database could not be opened.(2)");
@@ -211,11 +397,6 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         return removed;
     }
 
-
-    private static String generateDeleteClause(String table, String column, String eventIds) {
-        return "delete from " + table + " where " + column + " in (" + eventIds + ");";
-    }
-
     synchronized void removeAllEvents() {
         SQLiteDatabase db = getWritableDatabase();
         removeAllEvents(db);
@@ -227,10 +408,11 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
             try {
                 db.beginTransaction();
                 // Remove all rows
-                db.delete(EVENT_PARAMETERS_TABLE, null, null);
                 db.delete(EVENTS_TABLE, null, null);
 
                 db.setTransactionSuccessful();
+                m_storedEvents = 0;
+                m_storedBytes = 0;
             } catch (Exception e) {
                 QCLog.e(TAG, "Cannot clear events.", e);
             } finally {
@@ -252,41 +434,33 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         int numberWritten = 0;
         if (!events.isEmpty()) {
             if (db != null && db.isOpen()) {
-                final SQLiteStatement statement = db.compileStatement("INSERT INTO " + EVENTS_TABLE + " ( " + EVENTS_COLUMN_DOH + " ) VALUES ( ? )");
-                final SQLiteStatement paramsStatement = db.compileStatement("INSERT INTO " + EVENT_PARAMETERS_TABLE + " ( "
-                        + EVENT_PARAMETERS_COLUMN_EVENT_ID + "," + EVENT_PARAMETERS_COLUMN_NAME + "," + EVENT_PARAMETERS_COLUMN_VALUE
-                        + " ) VALUES ( ? , ? , ?)");
+                final SQLiteStatement statement = db.compileStatement("INSERT INTO " + EVENTS_TABLE + " ( "
+                        + EVENTS_COLUMN_DATA + "," + EVENTS_COLUMN_TYPE + "," + EVENTS_COLUMN_PRIORITY + " ) VALUES ( ? , ? , ? )");
 
-
-                if (statement != null && paramsStatement != null) {
+                if (statement != null) {
+                    long bytesWritten = 0;
                     db.beginTransaction();
                     try {
                         for (QCEvent event : events) {
+                            byte[] data = serializeParameters(event.getParameters());
                             statement.clearBindings();
-                            statement.bindLong(1, 0);
-                            // rest of bindings
+                            statement.bindBlob(1, data);
+                            bindType(statement, 2, event.getParameters());
+                            statement.bindLong(3, event.getPriority());
                             long eventId = statement.executeInsert();
                             if (eventId < 0) {
                                 QCLog.e(TAG, "Unable to save " + event + ". See DatabaseUtils logs for a detailed stack trace.");
                             } else {
-                                for (Entry<String, String> entry : event.getParameters().entrySet()) {
-                                    String name = entry.getKey();
-                                    String value = entry.getValue();
-                                    paramsStatement.clearBindings();
-                                    paramsStatement.bindLong(1, eventId);
-                                    paramsStatement.bindString(2, name);
-                                    paramsStatement.bindString(3, value);
-                                    paramsStatement.execute();
-                                }
                                 numberWritten++;
+                                bytesWritten += data.length;
                             }
                         }
                         db.setTransactionSuccessful();
                     } finally {
                         db.endTransaction();
                         statement.close();
-                        paramsStatement.close();
                     }
+                    addToTotals(numberWritten, bytesWritten);
                 }
             } else {
                 QCLog.e(TAG, "Database could not be opened.(4)");
@@ -295,12 +469,139 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         return numberWritten;
     }
 
+    synchronized int evictEvents(long maxEvents, long maxBytes, QCEvictionPolicy evictionPolicy) {
+        //the common case, well within the limits, does not even open the database
+        if (m_storedEvents >= 0 && !overLimits(maxEvents, maxBytes)) return 0;
+        SQLiteDatabase db = getWritableDatabase();
+        int retval = evictEvents(db, maxEvents, maxBytes, evictionPolicy);
+        close();
+        return retval;
+    }
+
+    /**
+     * Drops stored events once there are more than maxEvents of them or they take up more than maxBytes, until they
+     * are back under a fraction of the limits.  A limit of 0 or less is no limit.  Events leased to an upload are
+     * counted but never dropped, the upload deletes or releases them.  The table is only queried once the running
+     * totals are over a limit.
+     *
+     * @return the number of events dropped
+     */
+    synchronized int evictEvents(SQLiteDatabase db, long maxEvents, long maxBytes, QCEvictionPolicy evictionPolicy) {
+        int evicted = 0;
+        if (db != null && db.isOpen()) {
+            if (m_storedEvents < 0) {
+                countStoredEvents(db);
+            }
+            long count = m_storedEvents;
+            long bytes = m_storedBytes;
+            long excess = 0;
+            if (maxEvents > 0 && count > maxEvents) {
+                excess = count - maxEvents * EVICTION_TARGET_PERCENT / 100;
+            }
+            if (maxBytes > 0 && count > 0) {
+                if (bytes > maxBytes) {
+                    long averageSize = Math.max(1, bytes / count);
+                    long byteExcess = (bytes - maxBytes * EVICTION_TARGET_PERCENT / 100 + averageSize - 1) / averageSize;
+                    excess = Math.max(excess, byteExcess);
+                }
+            }
+
+            if (excess > 0) {
+                db.beginTransaction();
+                try {
+                    if (evictionPolicy == QCEvictionPolicy.DROP_LOW_PRIORITY) {
+                        deleteFirst(db, NOT_HIGH_PRIORITY_SELECTION, EVENTS_COLUMN_PRIORITY + "," + EVENTS_COLUMN_ID, excess);
+                    } else if (evictionPolicy == QCEvictionPolicy.SAMPLE) {
+                        deleteEveryOther(db, excess * 2);
+                    }
+                    //whatever the policy could not free comes from the oldest events
+                    long remaining = excess - (count - rowCountForTable(db, EVENTS_TABLE));
+                    if (remaining > 0) {
+                        deleteFirst(db, UNLEASED_SELECTION, EVENTS_COLUMN_ID, remaining);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                countStoredEvents(db);
+                evicted = (int) (count - m_storedEvents);
+                QCLog.w(TAG, "Dropped " + evicted + " stored events to stay within the storage limits.");
+            }
+        } else {
+            QCLog.e(TAG, "Database could not be opened.(7)");
+        }
+        return evicted;
+    }
+
+    //ids are not contiguous once events have been uploaded or dropped, so the window is thinned by position.  The
+    //oldest event of every pair is kept
+    private static void deleteEveryOther(SQLiteDatabase db, long window) {
+        final SQLiteStatement statement = db.compileStatement("DELETE FROM " + EVENTS_TABLE + " WHERE " + EVENTS_COLUMN_ID + " = ?");
+        Cursor cursor = db.query(EVENTS_TABLE, new String[]{EVENTS_COLUMN_ID}, UNLEASED_SELECTION, null, null, null, EVENTS_COLUMN_ID,
+                Long.toString(window));
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getPosition() % 2 == 1) {
+                    statement.bindLong(1, cursor.getLong(0));
+                    statement.execute();
+                }
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+    }
+
+    private static void deleteFirst(SQLiteDatabase db, String selection, String orderBy, long limit) {
+        db.execSQL("delete from " + EVENTS_TABLE + " where " + EVENTS_COLUMN_ID + " in (select " + EVENTS_COLUMN_ID + " from "
+                + EVENTS_TABLE + (selection != null ? " where " + selection : "") + " order by " + orderBy
+                + " limit " + limit + ");");
+    }
+
+    private boolean overLimits(long maxEvents, long maxBytes) {
+        return (maxEvents > 0 && m_storedEvents > maxEvents) || (maxBytes > 0 && m_storedBytes > maxBytes);
+    }
+
+    private void addToTotals(long events, long bytes) {
+        if (m_storedEvents >= 0) {
+            m_storedEvents += events;
+            m_storedBytes += bytes;
+        }
+    }
+
+    private void countStoredEvents(SQLiteDatabase db) {
+        m_storedEvents = rowCountForTable(db, EVENTS_TABLE);
+        m_storedBytes = DatabaseUtils.longForQuery(db, "select ifnull(sum(length(" + EVENTS_COLUMN_DATA + ")), 0) from " + EVENTS_TABLE, null);
+    }
+
+    /**
+     * Counts the stored events and the space they take up.  Both are kept up to date from then on, so checking the
+     * storage limits after a write does not scan the table.
+     *
+     * @return the number of stored events
+     */
+    synchronized long countStoredEvents() {
+        SQLiteDatabase db = getWritableDatabase();
+        try {
+            if (db != null && db.isOpen()) {
+                countStoredEvents(db);
+            } else {
+                QCLog.e(TAG, "Database could not be opened.(10)");
+            }
+        } finally {
+            close();
+        }
+        return Math.max(0, m_storedEvents);
+    }
+
     synchronized void deleteDB(Context context) {
+        m_storedEvents = -1;
+        m_storedBytes = -1;
         close();
         context.deleteDatabase(NAME);
     }
 
-    long numberOfEvents() {
+    synchronized long numberOfEvents() {
         SQLiteDatabase db = getReadableDatabase();
         long retval = rowCountForTable(db, EVENTS_TABLE);
         close();
@@ -317,4 +618,14 @@ class QCDatabaseDAO extends SQLiteOpenHelper {
         return retval;
     }
 
+    interface EventCallback {
+        /**
+         * Called once per stored event, in the order the events are read.
+         *
+         * @param eventId The id of the stored event.
+         * @param event   The stored event after the policy has been applied, or null if the policy does not allow it to be sent.
+         */
+        void eventRead(long eventId, QCEvent event);
+    }
+
 }
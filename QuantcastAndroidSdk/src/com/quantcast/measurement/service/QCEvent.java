@@ -12,19 +12,9 @@
 package com.quantcast.measurement.service;
 
 import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.res.Configuration;
-import android.graphics.Point;
-import android.os.Build;
-import android.telephony.TelephonyManager;
-import android.view.Display;
-import android.view.WindowManager;
-
-import java.lang.reflect.Field;
+
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -67,6 +57,8 @@ class QCEvent {
     static final String QC_LOCALELANG_KEY = "ll";
     static final String QC_INSTALLDATE_KEY = "inst";
     static final String QC_APPEVENT_KEY = "appevent";
+    static final String QC_COUNT_KEY = "count";
+    static final String QC_SAMPLE_WEIGHT_KEY = "sample-weight";
     static final String QC_LATENCYVALUE_KEY = "latency-value";
     static final String QC_LATENCYID_KEY = "uplid";
 
@@ -84,71 +76,47 @@ class QCEvent {
     static final String QC_EVENT_LATENCY = "latency";
     static final String QC_EVENT_SDKERROR = "sdkerror";
 
+    //events are read for upload from the highest priority down
+    static final int PRIORITY_LOW = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_HIGH = 2;
+
+    //set while an API call made earlier on another thread is being run, so its events keep the time of the call
+    private static final ThreadLocal<Long> CALL_TIME = new ThreadLocal<Long>();
+
     protected static final String QC_BEGIN_LAUNCH_REASON = "launch";
     protected static final String QC_BEGIN_RESUME_REASON = "resume";
     protected static final String QC_BEGIN_USERHASH_REASON = "userhash";
 
+    static void setCallTime(Long time) {
+        CALL_TIME.set(time);
+    }
+
+    /**
+     * @return the time the API call being run on this thread was made, which is now unless the call was deferred.
+     */
+    static long callTime() {
+        Long time = CALL_TIME.get();
+        return time != null ? time : System.currentTimeMillis();
+    }
+
     static QCEvent beginSessionEvent(Context context, String userhash,
                                             String reason, String session,
                                             String apiKey, String networkCode,
                                             String deviceId, String[] appLabels, String[] networkLabel) {
         QCEvent e = new QCEvent(session);
+        e.setPriority(PRIORITY_HIGH);
 
         e.addParameter(QC_EVENT_KEY, QC_EVENT_LOAD);
         e.addParameter(QC_REASON_KEY, reason);
         e.addParameter(QC_APIKEY_KEY, apiKey);
         e.addParameter(QC_MEDIA_KEY, QC_MEDIA_VALUE);
-        e.addParameter(QC_CONNECTION_KEY, QCReachability.networkType(context));
         e.addParameter(QC_NETWORKCODE_KEY, networkCode);
         e.addParameter(QC_REFERRER_KEY, QCReferrerReceiver.referrer);
         e.addParameter(QC_DEVICEID_KEY, deviceId);
         e.addParameter(QC_APPID_KEY, QCUtility.getAppInstallId(context));
-        e.addParameter(QC_APPNAME_KEY, QCUtility.getAppName(context));
         e.addParameter(QC_USERHASH_KEY, userhash);
-
-        String packageName = context.getPackageName();
-        e.addParameter(QC_PACKAGEID_KEY, packageName);
-
-        PackageManager packageManager = context.getPackageManager();
-        if (packageManager != null) {
-            try {
-                PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
-                if (packageInfo != null) {
-                    e.addParameter(QC_VERSION_KEY, packageInfo.versionName);
-                    e.addParameter(QC_BUILDNUM_KEY, Integer.toString(packageInfo.versionCode));
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-                        try {
-                            Field field = PackageInfo.class.getField("firstInstallTime");
-                            long timestamp = field.getLong(packageInfo);
-                            e.addParameter(QC_INSTALLDATE_KEY, String.valueOf(timestamp));
-                        } catch (Exception e1) {
-                            //error getting install time so get next best
-                            e.addParameter(QC_INSTALLDATE_KEY, String.valueOf(context.getFilesDir().lastModified()));
-                        }
-                    } else {
-                        e.addParameter(QC_INSTALLDATE_KEY, String.valueOf(context.getFilesDir().lastModified()));
-                    }
-                }
-            } catch (PackageManager.NameNotFoundException nnfe) {
-                QCLog.e(TAG, "Unable to get application info for this app.", nnfe);
-            }
-        }
-
-        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        if (windowManager != null) {
-            Display d = windowManager.getDefaultDisplay();
-            String dims;
-            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2){
-                Point point = new Point();
-                d.getSize(point);
-                dims = String.format("%dx%dx32", point.x, point.y);
-            }else{
-                //noinspection deprecation
-                dims = String.format("%dx%dx32", d.getWidth(), d.getHeight());
-            }
-            e.addParameter(QC_SCREENRES_KEY, dims);
-        }
-
+        e.addParameters(QCSessionContext.get(context).getParameters());
 
         TimeZone tz = TimeZone.getDefault();
         Date now = new Date();
@@ -158,51 +126,6 @@ class QCEvent {
 
         e.addParameter(QC_TIMEZONE_KEY, Long.toString(tzo));
 
-        TelephonyManager tel = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-        if (tel != null) {
-            String carrierInfo = tel.getNetworkOperator();
-            //no network?  then try the sim
-            if (carrierInfo == null || carrierInfo.length() <= 0) {
-                carrierInfo = tel.getSimOperator();
-            }
-            if (carrierInfo != null && carrierInfo.length() > 0) {
-                if (carrierInfo.length() <= 3) {
-                    e.addParameter(QC_MCC_KEY, carrierInfo);
-                } else {
-                    e.addParameter(QC_MCC_KEY, carrierInfo.substring(0, 3));
-                    e.addParameter(QC_MNC_KEY, carrierInfo.substring(3));
-                }
-            }
-
-            String countryCode = tel.getNetworkCountryIso();
-            if (countryCode == null || countryCode.length() == 0) {
-                countryCode = tel.getSimCountryIso();
-            }
-            if (countryCode != null && countryCode.length() > 0) {
-                e.addParameter(QC_COUNTRYCODE_KEY, countryCode);
-            }
-
-            String carrierName = tel.getNetworkOperatorName();
-            if (carrierName == null || carrierName.length() == 0) {
-                carrierName = tel.getSimOperatorName();
-            }
-            if (carrierName != null && carrierName.length() > 0) {
-                e.addParameter(QC_CARRIERNAME_KEY, carrierName);
-            }
-        }
-        int screenLayout = context.getResources().getConfiguration().screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK;
-        boolean isTablet = screenLayout == 4 || screenLayout == Configuration.SCREENLAYOUT_SIZE_LARGE;
-        e.addParameter(QC_DEVICETYPE_KEY, isTablet ? "Tablet" : "Handset");
-
-        e.addParameter(QC_DEVICEOS_KEY, QC_DEVICEOS_VALUE);
-        e.addParameter(QC_DEVICEMODEL_KEY, Build.MODEL);
-        e.addParameter(QC_OSVERSION_KEY, Build.VERSION.RELEASE);
-        e.addParameter(QC_MANUFACTURER_KEY, Build.MANUFACTURER);
-
-        Locale locale = Locale.getDefault();
-        e.addParameter(QC_LOCALECOUNTRY_KEY, locale.getISO3Country());
-        e.addParameter(QC_LOCALELANG_KEY, locale.getISO3Language());
-
         e.addLabels(appLabels);
         e.addNetworkLabels(networkLabel);
         return e;
@@ -211,6 +134,7 @@ class QCEvent {
 
     static QCEvent closeSessionEvent(Context c, String sessionId, String[] appLabels, String[] networkLabel) {
         QCEvent e = new QCEvent(sessionId);
+        e.setPriority(PRIORITY_HIGH);
         e.setForceUpload(true);
         e.addParameter(QC_EVENT_KEY, QC_EVENT_FINISHED);
         String appInstallId = QCUtility.getAppInstallId(c);
@@ -224,6 +148,7 @@ class QCEvent {
 
     static QCEvent pauseSession(Context c, String sessionId, String[] appLabels, String[] networkLabel) {
         QCEvent e = new QCEvent(sessionId);
+        e.setPriority(PRIORITY_HIGH);
         e.setForceUpload(true);
         e.addParameter(QC_EVENT_KEY, QC_EVENT_PAUSE);
         String appInstallId = QCUtility.getAppInstallId(c);
@@ -237,6 +162,7 @@ class QCEvent {
 
     static QCEvent resumeSession(Context c, String sessionId, String[] appLabels, String[] networkLabel) {
         QCEvent e = new QCEvent(sessionId);
+        e.setPriority(PRIORITY_HIGH);
         e.addParameter(QC_EVENT_KEY, QC_EVENT_RESUME);
         String appInstallId = QCUtility.getAppInstallId(c);
         if (appInstallId != null) {
@@ -249,6 +175,7 @@ class QCEvent {
 
     static QCEvent logEvent(Context c, String sessionId, String eventName, String[] appLabels, String[] networkLabel) {
         QCEvent e = new QCEvent(sessionId);
+        e.setPriority(PRIORITY_LOW);
         e.addParameter(QC_EVENT_KEY, QC_EVENT_APPEVENT);
         e.addParameter(QC_APPEVENT_KEY, eventName);
         String appInstallId = QCUtility.getAppInstallId(c);
@@ -276,6 +203,7 @@ class QCEvent {
 
     static QCEvent logSDKError(String sessionId, String errorType, String errorDesc, String errorParam) {
         QCEvent e = new QCEvent(sessionId);
+        e.setPriority(PRIORITY_HIGH);
         e.setForceUpload(true);
         e.addParameter(QC_EVENT_KEY, QC_EVENT_SDKERROR);
         e.addParameter(QC_ERRORTYPE_KEY, errorType);
@@ -336,16 +264,19 @@ class QCEvent {
     private final Map<String, String> m_parameters;
     private final String m_eventId;
     private boolean m_forceUpload;
+    private int m_priority;
 
     QCEvent(Long eventId) {
         m_parameters = new HashMap<String, String>();
         m_eventId = Long.toString(eventId);
         m_forceUpload = false;
+        m_priority = PRIORITY_NORMAL;
     }
 
     QCEvent(String sessionId) {
         m_parameters = new HashMap<String, String>();
-        addParameter(QC_TIMESTAMP_KEY, Long.toString(System.currentTimeMillis() / 1000));
+        m_priority = PRIORITY_NORMAL;
+        addParameter(QC_TIMESTAMP_KEY, Long.toString(callTime() / 1000));
         addParameter(QC_SESSIONID_KEY, sessionId);
         m_eventId = null;
     }
@@ -362,6 +293,13 @@ class QCEvent {
         }
     }
 
+    //each event logged at a sample rate below 1 stands for 1/rate events
+    void addSampleWeight(double sampleRate) {
+        if (sampleRate > 0 && sampleRate < 1) {
+            addParameter(QC_SAMPLE_WEIGHT_KEY, Double.toString(1 / sampleRate));
+        }
+    }
+
     void addLabels(String[] labels) {
         String encoded = QCUtility.encodeStringArray(labels);
         addParameter(QC_PARAMETER_APP_LABEL, encoded);
@@ -380,6 +318,26 @@ class QCEvent {
         m_forceUpload = forceUpload;
     }
 
+    //priority of a stored event of the given type, for events stored before priorities existed
+    static int priorityForType(String type) {
+        int retval = PRIORITY_NORMAL;
+        if (QC_EVENT_APPEVENT.equals(type)) {
+            retval = PRIORITY_LOW;
+        } else if (QC_EVENT_LOAD.equals(type) || QC_EVENT_RESUME.equals(type) || QC_EVENT_PAUSE.equals(type)
+                || QC_EVENT_FINISHED.equals(type) || QC_EVENT_SDKERROR.equals(type)) {
+            retval = PRIORITY_HIGH;
+        }
+        return retval;
+    }
+
+    int getPriority() {
+        return m_priority;
+    }
+
+    void setPriority(int priority) {
+        m_priority = priority;
+    }
+
     String getEventId() {
         return m_eventId;
     }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds repeated app events with the same name, labels, session and sample rate into one event with a count.
+ * <p/>
+ * The first occurrence is kept and counted until its window has passed, the table is full or the app pauses.
+ * The table holds a bounded number of distinct events, the oldest is let go to make room for a new one.
+ * <p/>
+ * A repeat costs one table lookup and allocates nothing, the lookup key is reused and the arrays are compared as they
+ * are.  Only the first occurrence builds its event and a key of its own.
+ */
+class QCEventAggregator {
+
+    static final int DEFAULT_CAPACITY = 64;
+    static final long DEFAULT_WINDOW = 60 * 1000; // 1 minute
+
+    private final int m_capacity;
+    private final long m_window;
+
+    //in order of first occurrence, so the oldest entries come first
+    private final LinkedHashMap<Key, Entry> m_entries;
+    //filled in for every lookup, only guarded by the lock on this
+    private final Key m_probe = new Key();
+    private long m_oldestFirstSeen = Long.MAX_VALUE;
+
+    QCEventAggregator(int capacity, long window) {
+        m_capacity = Math.max(1, capacity);
+        m_window = window;
+        m_entries = new LinkedHashMap<Key, Entry>();
+    }
+
+    /**
+     * Counts one app event.
+     *
+     * @return the aggregated events that are done and should be posted now, possibly empty and then not to be modified.
+     */
+    synchronized List<QCEvent> add(Context context, String sessionId, String name, String[] appLabels, String[] networkLabels,
+                                   double sampleRate, long now) {
+        List<QCEvent> done = drainExpired(now);
+
+        m_probe.set(sessionId, name, appLabels, networkLabels, sampleRate);
+        Entry entry = m_entries.get(m_probe);
+        if (entry != null) {
+            entry.count++;
+        } else {
+            if (m_entries.size() >= m_capacity) {
+                if (done.isEmpty()) {
+                    done = new ArrayList<QCEvent>(1);
+                }
+                Iterator<Entry> oldest = m_entries.values().iterator();
+                done.add(oldest.next().toEvent());
+                oldest.remove();
+                updateOldest();
+            }
+            QCEvent event = QCEvent.logEvent(context, sessionId, name, appLabels, networkLabels);
+            event.addSampleWeight(sampleRate);
+            Key key = new Key();
+            key.set(sessionId, name, appLabels != null ? appLabels.clone() : null,
+                    networkLabels != null ? networkLabels.clone() : null, sampleRate);
+            m_entries.put(key, new Entry(event, now));
+            m_oldestFirstSeen = Math.min(m_oldestFirstSeen, now);
+        }
+        m_probe.set(null, null, null, null, 0);
+        return done;
+    }
+
+    /**
+     * Removes every aggregated event, oldest first.
+     */
+    synchronized List<QCEvent> drain() {
+        List<QCEvent> events = new ArrayList<QCEvent>(m_entries.size());
+        for (Entry entry : m_entries.values()) {
+            events.add(entry.toEvent());
+        }
+        m_entries.clear();
+        m_oldestFirstSeen = Long.MAX_VALUE;
+        return events;
+    }
+
+    synchronized void clear() {
+        m_entries.clear();
+        m_oldestFirstSeen = Long.MAX_VALUE;
+    }
+
+    private List<QCEvent> drainExpired(long now) {
+        if (now - m_oldestFirstSeen < m_window) return Collections.emptyList();
+
+        List<QCEvent> events = new ArrayList<QCEvent>();
+        Iterator<Map.Entry<Key, Entry>> iterator = m_entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (now - entry.firstSeen < m_window) break;
+            events.add(entry.toEvent());
+            iterator.remove();
+        }
+        updateOldest();
+        return events;
+    }
+
+    private void updateOldest() {
+        m_oldestFirstSeen = m_entries.isEmpty() ? Long.MAX_VALUE : m_entries.values().iterator().next().firstSeen;
+    }
+
+    private static class Key {
+        private String m_sessionId;
+        private String m_name;
+        private String[] m_appLabels;
+        private String[] m_networkLabels;
+        private double m_sampleRate;
+
+        void set(String sessionId, String name, String[] appLabels, String[] networkLabels, double sampleRate) {
+            m_sessionId = sessionId;
+            m_name = name;
+            m_appLabels = appLabels;
+            m_networkLabels = networkLabels;
+            m_sampleRate = sampleRate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return equal(m_sessionId, other.m_sessionId) && equal(m_name, other.m_name)
+                    && Double.compare(m_sampleRate, other.m_sampleRate) == 0
+                    && Arrays.equals(m_appLabels, other.m_appLabels) && Arrays.equals(m_networkLabels, other.m_networkLabels);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = m_sessionId != null ? m_sessionId.hashCode() : 0;
+            result = 31 * result + (m_name != null ? m_name.hashCode() : 0);
+            result = 31 * result + Arrays.hashCode(m_appLabels);
+            result = 31 * result + Arrays.hashCode(m_networkLabels);
+            long rateBits = Double.doubleToLongBits(m_sampleRate);
+            return 31 * result + (int) (rateBits ^ (rateBits >>> 32));
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static class Entry {
+        final QCEvent event;
+        final long firstSeen;
+        int count;
+
+        Entry(QCEvent event, long firstSeen) {
+            this.event = event;
+            this.firstSeen = firstSeen;
+            this.count = 1;
+        }
+
+        QCEvent toEvent() {
+            if (count > 1) {
+                event.addParameter(QCEvent.QC_COUNT_KEY, Integer.toString(count));
+            }
+            return event;
+        }
+    }
+}
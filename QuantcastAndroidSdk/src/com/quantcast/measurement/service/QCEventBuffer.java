@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded buffer that holds events in memory until they are written to the database as a single transaction.
+ * The buffer is always drained as a whole, so the slots are simply reused from the start after every flush.
+ */
+class QCEventBuffer {
+
+    private final QCEvent[] m_events;
+    private final long m_maxAge;
+
+    private int m_size;
+    private long m_oldestTime;
+
+    QCEventBuffer(int capacity, long maxAge) {
+        m_events = new QCEvent[Math.max(1, capacity)];
+        m_maxAge = maxAge;
+        m_size = 0;
+    }
+
+    /**
+     * Adds an event to the end of the buffer.
+     *
+     * @return every buffered event, oldest first, if the buffer should be flushed now because it is full, the oldest
+     * event has reached the maximum age or the event needs to be uploaded right away.  Otherwise null.
+     */
+    synchronized List<QCEvent> add(QCEvent event, long now) {
+        if (m_size == 0) {
+            m_oldestTime = now;
+        }
+        m_events[m_size] = event;
+        m_size++;
+
+        List<QCEvent> flushed = null;
+        if (m_size >= m_events.length || event.shouldForceUpload() || now - m_oldestTime >= m_maxAge) {
+            flushed = drain();
+        }
+        return flushed;
+    }
+
+    /**
+     * Removes every buffered event, oldest first.
+     */
+    synchronized List<QCEvent> drain() {
+        List<QCEvent> events = new ArrayList<QCEvent>(m_size);
+        for (int i = 0; i < m_size; i++) {
+            events.add(m_events[i]);
+            m_events[i] = null;
+        }
+        m_size = 0;
+        return events;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < m_events.length; i++) {
+            m_events[i] = null;
+        }
+        m_size = 0;
+    }
+
+    synchronized boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    long getMaxAge() {
+        return m_maxAge;
+    }
+}
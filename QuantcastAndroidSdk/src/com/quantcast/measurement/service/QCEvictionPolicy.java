@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+/**
+ * Which stored events are dropped when more events are waiting to be uploaded than the limits set with
+ * {@link QuantcastClient#setStoredEventLimits(int, long, QCEvictionPolicy)} allow.
+ */
+public enum QCEvictionPolicy {
+    /**
+     * Drop the oldest events.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the oldest app defined events first, then other events that are not session events, keeping session events
+     * such as launches and pauses as long as possible.
+     */
+    DROP_LOW_PRIORITY,
+    /**
+     * Drop every other one of the oldest events, so the oldest period is thinned out instead of lost.
+     */
+    SAMPLE
+}
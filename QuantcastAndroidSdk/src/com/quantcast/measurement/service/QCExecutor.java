@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single background thread all SDK work runs on.
+ * <p/>
+ * Work is run one task at a time in the order it was submitted, so a database write always finishes before an upload
+ * that is submitted after it.  The SDK never shares the app's AsyncTask executor.  API calls made with asynchronous
+ * start-up get a second thread of their own.
+ * <p/>
+ * Once too much work is queued, optional work is dropped.  Database writes and uploads are {@link Task}s that are
+ * required, and are queued anyway since dropping them would lose events or leave an upload flagged as running.
+ */
+enum QCExecutor {
+    INSTANCE;
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCExecutor.class);
+
+    private static final int MAX_QUEUED_TASKS = 128;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final String THREAD_NAME = "QuantcastMeasurement";
+    private static final String CALL_THREAD_NAME = "QuantcastMeasurementCalls";
+
+    private final ThreadPoolExecutor m_executor;
+    private final ThreadPoolExecutor m_callExecutor;
+    private final Handler m_mainHandler;
+
+    private QCExecutor() {
+        //no core threads so the thread goes away when the SDK has nothing to do
+        m_executor = new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new TaskQueue(),
+                newThreadFactory(THREAD_NAME),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        QCLog.e(TAG, "Too much work queued.  Dropping task " + runnable);
+                        if (runnable instanceof Task) {
+                            ((Task) runnable).rejected();
+                        }
+                    }
+                });
+        //api calls are never dropped, and are not held up behind a long upload
+        m_callExecutor = new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory(CALL_THREAD_NAME));
+        m_mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    void execute(Runnable runnable) {
+        m_executor.execute(runnable);
+    }
+
+    /**
+     * Runs API calls made with asynchronous start-up, one at a time in the order they were made.
+     */
+    void executeCall(Runnable runnable) {
+        m_callExecutor.execute(runnable);
+    }
+
+    void postToMain(Runnable runnable) {
+        m_mainHandler.post(runnable);
+    }
+
+    void postToMainDelayed(Runnable runnable, long delay) {
+        m_mainHandler.postDelayed(runnable, delay);
+    }
+
+    /**
+     * Work that wants to know whether it may be dropped, and is told when it is.
+     */
+    interface Task extends Runnable {
+        /**
+         * @return true if the task must be queued even when the queue is full
+         */
+        boolean isRequired();
+
+        /**
+         * Called on the submitting thread instead of {@link #run()} when the task was dropped.
+         */
+        void rejected();
+    }
+
+    //bounded for optional work only, required tasks are always queued behind whatever is already there
+    private static class TaskQueue extends LinkedBlockingQueue<Runnable> {
+        @Override
+        public boolean offer(Runnable runnable) {
+            if (size() >= MAX_QUEUED_TASKS && !(runnable instanceof Task && ((Task) runnable).isRequired())) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+    }
+
+}
@@ -11,7 +11,9 @@
  */
 package com.quantcast.measurement.service;
 
+import android.app.Application;
 import android.content.Context;
+import android.os.Build;
 import android.provider.Settings;
 import android.webkit.CookieManager;
 import android.webkit.CookieSyncManager;
@@ -19,35 +21,63 @@ import android.webkit.CookieSyncManager;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
 
 enum QCMeasurement implements QCNotificationListener {
     INSTANCE;
 
     private static final QCLog.Tag TAG = new QCLog.Tag(QCMeasurement.class);
+    //passed for an app event whose sample rate has not been looked up and drawn against yet
+    private static final double NOT_SAMPLED = -1;
     static final long DEFAULT_SESSION_TIMEOUT = 30 * 60 * 1000; // 30 minutes
     static final int DEFAULT_UPLOAD_EVENT_COUNT = 100;
+    static final int DEFAULT_CONNECTION_TIMEOUT = 15 * 1000; // 15 seconds
+    static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000; // 30 seconds
+    static final int DEFAULT_MAX_STORED_EVENTS = 10000;
+    static final long DEFAULT_MAX_STORED_BYTES = 5 * 1024 * 1024; // 5 MB
+    //long enough for an activity to be recreated after a configuration change
+    static final long PAUSE_GRACE_PERIOD = 2 * 1000; // 2 seconds
 
     public static final String QC_NOTIF_APP_START = "QC_START";
     public static final String QC_NOTIF_APP_STOP = "QC_STOP";
 
-    private boolean m_optedOut;
+    private volatile boolean m_optedOut;
 
     private QCPolicy m_policy;
-    private QCDataManager m_manager;
+    private volatile QCDataManager m_manager;
     private Context m_context;
 
     private String m_apiKey;
     private String m_networkCode;
     private String m_userId;
-    private String m_sessionId;
+    private volatile String m_sessionId;
     private String m_deviceId;
 
     private long m_lastPause;
     private int m_numActiveContext;
+    //id of the pause waiting out its grace period, 0 if there is none
+    private int m_pendingPause;
+    private int m_pauseCount;
 
     private boolean m_usesSecureConnection = false;
+    private volatile int m_connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private volatile int m_socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private QCTransport m_transport;
+    private volatile boolean m_unmeteredUploadsOnly = false;
+    private volatile boolean m_scheduledUploads = false;
+    private QCUploadScheduler m_uploadScheduler;
+    private volatile int m_maxStoredEvents = DEFAULT_MAX_STORED_EVENTS;
+    private volatile long m_maxStoredBytes = DEFAULT_MAX_STORED_BYTES;
+    private volatile QCEvictionPolicy m_evictionPolicy = QCEvictionPolicy.DROP_OLDEST;
+    //null unless app events are aggregated
+    private volatile QCEventAggregator m_aggregator;
+    private final Random m_random = new Random();
+    private volatile boolean m_asyncStartUp = false;
+    //the registered tracker is held by the application, only whether there is one is kept here
+    private volatile boolean m_tracksActivities = false;
 
 
     private QCMeasurement() {
@@ -62,8 +92,76 @@ enum QCMeasurement implements QCNotificationListener {
         return startUp(context, apiKey, null, userIdOrNull, labelsOrNull, null, false);
     }
 
-    final String startUp(Context context, String apiKey, String networkCode, String userIdOrNull, String[] appLabelsOrNull,
-                         String[] networkLabels, boolean isDirectedAtKids) {
+    final String startUp(final Context context, final String apiKey, final String networkCode, final String userIdOrNull,
+                         final String[] appLabelsOrNull, final String[] networkLabels, final boolean isDirectedAtKids) {
+        if (m_asyncStartUp) {
+            if (context == null && m_context == null) {
+                QCLog.e(TAG,"Context passed to Quantcast API cannot be null.");
+                return null;
+            }
+            //the application context is looked up here so the activity is not held by the queued call
+            final Context appContext = context != null && context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    startUpNow(appContext, apiKey, networkCode, userIdOrNull, appLabelsOrNull, networkLabels, isDirectedAtKids);
+                }
+            });
+            //hashing is pure computation, so the caller still gets the same id back
+            return userIdOrNull != null ? QCUtility.applyHash(userIdOrNull) : m_userId;
+        }
+        return startUpNow(context, apiKey, networkCode, userIdOrNull, appLabelsOrNull, networkLabels, isDirectedAtKids);
+    }
+
+    //automatic activity tracking keeps the one count of started activities for the process and only reports when it
+    //moves between 0 and 1, so the count here is set to match instead of moved, and an early return cannot leave it off
+    final void enterForeground(Context activity, final String apiKey, final String networkCode, final String userIdOrNull,
+                               final String[] appLabelsOrNull, final boolean isDirectedAtKids) {
+        final Context appContext = activity.getApplicationContext() != null ? activity.getApplicationContext() : activity;
+        if (m_asyncStartUp) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    enterForegroundNow(appContext, apiKey, networkCode, userIdOrNull, appLabelsOrNull, isDirectedAtKids);
+                }
+            });
+            return;
+        }
+        enterForegroundNow(appContext, apiKey, networkCode, userIdOrNull, appLabelsOrNull, isDirectedAtKids);
+    }
+
+    private void enterForegroundNow(Context context, String apiKey, String networkCode, String userIdOrNull,
+                                    String[] appLabelsOrNull, boolean isDirectedAtKids) {
+        //a pause still in its grace period is kept open by startUpNow, as with a manual restart
+        m_numActiveContext = 0;
+        startUpNow(context, apiKey, networkCode, userIdOrNull, appLabelsOrNull, null, isDirectedAtKids);
+    }
+
+    final void enterBackground(final String[] appLabels) {
+        if (m_asyncStartUp) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    enterBackgroundNow(appLabels);
+                }
+            });
+            return;
+        }
+        enterBackgroundNow(appLabels);
+    }
+
+    private void enterBackgroundNow(String[] appLabels) {
+        //opted out or never started, there is no session to pause but the process is still in the background
+        if (m_optedOut || !isMeasurementActive()) {
+            m_numActiveContext = 0;
+            return;
+        }
+        m_numActiveContext = 1;
+        stopNow(appLabels, null);
+    }
+
+    private String startUpNow(Context context, String apiKey, String networkCode, String userIdOrNull, String[] appLabelsOrNull,
+                              String[] networkLabels, boolean isDirectedAtKids) {
         //if this isn't the main activity then just count it and move on
         if (m_numActiveContext <= 0) {
 
@@ -106,17 +204,25 @@ enum QCMeasurement implements QCNotificationListener {
                 }
 
                 m_policy = QCPolicy.getQuantcastPolicy(m_context, m_apiKey, m_networkCode, m_context.getPackageName(), isDirectedAtKids);
-                m_manager = new QCDataManager(m_context);
+                //a scheduled upload may already have set up the manager
+                getOrCreateManager();
                 logBeginSessionEvent(QCEvent.QC_BEGIN_LAUNCH_REASON, appLabelsOrNull, networkLabels);
 
-                setUploadEventCount(DEFAULT_UPLOAD_EVENT_COUNT);
+                m_manager.setUploadCount(DEFAULT_UPLOAD_EVENT_COUNT);
                 QCNotificationCenter.INSTANCE.postNotification(QC_NOTIF_APP_START, m_context);
             } else {
+                if (m_pendingPause != 0) {
+                    //stopped and started again within the grace period, like on a rotation, so neither is sent
+                    QCLog.i(TAG, "Activity restarted before the pause was sent, staying in the session");
+                    m_pendingPause = 0;
+                    m_numActiveContext++;
+                    return m_userId;
+                }
                 QCLog.i(TAG, "Resuming Quantcast");
                 //otherwise just resume
                 m_policy.updatePolicy(m_context);
                 m_manager.postEvent(QCEvent.resumeSession(m_context, m_sessionId, appLabelsOrNull, networkLabels), m_policy);
-                if (m_lastPause + getSessionTimeoutInMs() < System.currentTimeMillis()) {
+                if (m_lastPause + getSessionTimeoutInMs() < QCEvent.callTime()) {
                     QCLog.i(TAG, "Past session timeout.  Starting new session.");
                     logBeginSessionEvent(QCEvent.QC_BEGIN_RESUME_REASON, appLabelsOrNull, networkLabels);
                 }
@@ -130,18 +236,75 @@ enum QCMeasurement implements QCNotificationListener {
         logEvent(name, labels, null);
     }
 
-    final void logEvent(String name, String[] appLabels, String[] networkLabel) {
+    final void logEvent(String name, String label) {
+        //checked here as well so a suppressed call does not even build the label array
+        //m_optedOut means nothing until a start up has run, which m_policy being set shows
+        if (m_policy != null && (m_optedOut || m_policy.suppressesAppEvents())) return;
+        logEvent(name, new String[]{label}, null);
+    }
+
+    final void logEvent(final String name, final String[] appLabels, final String[] networkLabel) {
+        if (m_asyncStartUp) {
+            //dropped here when the policy is already known, so a dropped event does not even queue a call
+            QCPolicy policy = m_policy;
+            double rate = NOT_SAMPLED;
+            if (policy != null) {
+                if (m_optedOut || policy.suppressesAppEvents()) return;
+                rate = policy.getSampleRate(name);
+                if (isSampledOut(rate)) return;
+            }
+            final double sampleRate = rate;
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    logEventNow(name, appLabels, networkLabel, sampleRate);
+                }
+            });
+            return;
+        }
+        logEventNow(name, appLabels, networkLabel, NOT_SAMPLED);
+    }
+
+    private void logEventNow(String name, String[] appLabels, String[] networkLabel, double sampleRate) {
         if (m_optedOut) return;
         if(isMeasurementActive()){
-            m_manager.postEvent(QCEvent.logEvent(m_context, m_sessionId, name, appLabels, networkLabel), m_policy);
+            //blacked out, blacklisted and sampled out events are dropped before anything is built for them
+            if (m_policy.suppressesAppEvents()) return;
+            if (sampleRate == NOT_SAMPLED) {
+                sampleRate = m_policy.getSampleRate(name);
+                if (isSampledOut(sampleRate)) return;
+            }
+
+            QCEventAggregator aggregator = m_aggregator;
+            if (aggregator != null) {
+                postEvents(aggregator.add(m_context, m_sessionId, name, appLabels, networkLabel, sampleRate, QCEvent.callTime()));
+            } else {
+                QCEvent event = QCEvent.logEvent(m_context, m_sessionId, name, appLabels, networkLabel);
+                event.addSampleWeight(sampleRate);
+                m_manager.postEvent(event, m_policy);
+            }
         }else{
             QCLog.e(TAG, "Log event called without first calling startActivity");
         }
     }
 
-    final void logOptionalEvent(Map<String, String> params, String[] appLabels, String[] networkLabels){
+    final void logOptionalEvent(final Map<String, String> params, final String[] appLabels, final String[] networkLabels){
+        if (m_asyncStartUp) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    logOptionalEventNow(params, appLabels, networkLabels);
+                }
+            });
+            return;
+        }
+        logOptionalEventNow(params, appLabels, networkLabels);
+    }
+
+    private void logOptionalEventNow(Map<String, String> params, String[] appLabels, String[] networkLabels){
         if (m_optedOut) return;
         if(isMeasurementActive()){
+            if (m_policy.isBlackedOut()) return;
             m_manager.postEvent(QCEvent.logOptionalEvent(m_context, m_sessionId, params, appLabels, networkLabels), m_policy);
         }else{
             QCLog.e(TAG, "Log event called without first calling startActivity");
@@ -152,22 +315,116 @@ enum QCMeasurement implements QCNotificationListener {
         stop(labels, null);
     }
 
-    final void stop(String[] appLabels, String[] networkLabels) {
+    final void stop(final String[] appLabels, final String[] networkLabels) {
+        if (m_asyncStartUp) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    stopNow(appLabels, networkLabels);
+                }
+            });
+            return;
+        }
+        stopNow(appLabels, networkLabels);
+    }
+
+    private void stopNow(String[] appLabels, String[] networkLabels) {
         if (m_optedOut) return;
 
         if(isMeasurementActive()){
             m_numActiveContext = Math.max(0, m_numActiveContext - 1);
             if (m_numActiveContext == 0) {
                 QCLog.i(TAG, "Last Activity stopped, pausing");
-                m_lastPause = System.currentTimeMillis();
-                m_manager.postEvent(QCEvent.pauseSession(m_context, m_sessionId, appLabels, networkLabels), m_policy);
-                QCNotificationCenter.INSTANCE.postNotification(QC_NOTIF_APP_STOP, m_context);
+                m_lastPause = QCEvent.callTime();
+                //the pause is only sent if no activity starts within the grace period
+                final int pause = ++m_pauseCount;
+                m_pendingPause = pause;
+                final String[] pauseAppLabels = appLabels;
+                final String[] pauseNetworkLabels = networkLabels;
+                QCExecutor.INSTANCE.postToMainDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (m_asyncStartUp) {
+                            runAsync(new Runnable() {
+                                @Override
+                                public void run() {
+                                    commitPause(pause, pauseAppLabels, pauseNetworkLabels);
+                                }
+                            });
+                        } else {
+                            commitPause(pause, pauseAppLabels, pauseNetworkLabels);
+                        }
+                    }
+                }, PAUSE_GRACE_PERIOD);
             }
         }else{
             QCLog.e(TAG, "Pause event called without first calling startActivity");
         }
     }
 
+    private void commitPause(int pause, String[] appLabels, String[] networkLabels) {
+        if (m_pendingPause != pause) return;
+        m_pendingPause = 0;
+        if (m_optedOut || !isMeasurementActive()) return;
+
+        //the pause keeps the time the last activity stopped, not the end of the grace period
+        QCEvent.setCallTime(m_lastPause);
+        try {
+            flushAggregatedEvents();
+            m_manager.postEvent(QCEvent.pauseSession(m_context, m_sessionId, appLabels, networkLabels), m_policy);
+        } finally {
+            QCEvent.setCallTime(null);
+        }
+        QCNotificationCenter.INSTANCE.postNotification(QC_NOTIF_APP_STOP, m_context);
+    }
+
+    private boolean isSampledOut(double sampleRate) {
+        return sampleRate < 1 && m_random.nextDouble() >= sampleRate;
+    }
+
+    //runs the call on the SDK's call thread, with the time it was made on this one
+    private void runAsync(final Runnable call) {
+        final long callTime = System.currentTimeMillis();
+        QCExecutor.INSTANCE.executeCall(new Runnable() {
+            @Override
+            public void run() {
+                QCEvent.setCallTime(callTime);
+                try {
+                    call.run();
+                } finally {
+                    QCEvent.setCallTime(null);
+                }
+            }
+        });
+    }
+
+    private void postEvents(List<QCEvent> events) {
+        //indexed so an empty list costs no iterator
+        for (int i = 0; i < events.size(); i++) {
+            m_manager.postEvent(events.get(i), m_policy);
+        }
+    }
+
+    private void flushAggregatedEvents() {
+        QCEventAggregator aggregator = m_aggregator;
+        if (aggregator != null) {
+            postEvents(aggregator.drain());
+        }
+    }
+
+    final void setEventAggregation(boolean aggregate) {
+        if (aggregate) {
+            if (m_aggregator == null) {
+                m_aggregator = new QCEventAggregator(QCEventAggregator.DEFAULT_CAPACITY, QCEventAggregator.DEFAULT_WINDOW);
+            }
+        } else if (m_aggregator != null) {
+            if (isMeasurementActive() && !m_optedOut) {
+                flushAggregatedEvents();
+            }
+            m_aggregator = null;
+        }
+    }
+
     public final boolean isMeasurementActive() {
         return m_sessionId != null;
     }
@@ -176,7 +433,20 @@ enum QCMeasurement implements QCNotificationListener {
         return recordUserIdentifier(userId, labels, null);
     }
 
-    final String recordUserIdentifier(String userId, String[] appLabels, String[] networkLabels) {
+    final String recordUserIdentifier(final String userId, final String[] appLabels, final String[] networkLabels) {
+        if (m_asyncStartUp) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    recordUserIdentifierNow(userId, appLabels, networkLabels);
+                }
+            });
+            return userId != null ? QCUtility.applyHash(userId) : null;
+        }
+        return recordUserIdentifierNow(userId, appLabels, networkLabels);
+    }
+
+    private String recordUserIdentifierNow(String userId, String[] appLabels, String[] networkLabels) {
         if (m_optedOut) return null;
 
         //if not active just save it and send it on start
@@ -193,19 +463,46 @@ enum QCMeasurement implements QCNotificationListener {
     }
 
     //apps don't really give us a chance to do this so its not used
-    final void end(String[] appLabels, String[] networkLabels) {
+    final void end(final String[] appLabels, final String[] networkLabels) {
+        if (m_asyncStartUp) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    endNow(appLabels, networkLabels);
+                }
+            });
+            return;
+        }
+        endNow(appLabels, networkLabels);
+    }
+
+    private void endNow(String[] appLabels, String[] networkLabels) {
         if (m_optedOut) return;
         if(isMeasurementActive()){
             QCLog.i(TAG, "Calling end.");
+            //counts still held belong to this session and must go before its close
+            flushAggregatedEvents();
             m_manager.postEvent(QCEvent.closeSessionEvent(m_context, m_sessionId, appLabels, networkLabels), m_policy);
             m_sessionId = null;
             m_numActiveContext = 0;
+            m_pendingPause = 0;
         }else{
             QCLog.e(TAG, "End event called without first calling startActivity");
         }
     }
 
-    public final void setUploadEventCount(int uploadEventCount) {
+    public final void setUploadEventCount(final int uploadEventCount) {
+        if (m_asyncStartUp) {
+            runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    if (isMeasurementActive()) {
+                        m_manager.setUploadCount(uploadEventCount);
+                    }
+                }
+            });
+            return;
+        }
         if(isMeasurementActive()){
             m_manager.setUploadCount(uploadEventCount);
         }
@@ -223,6 +520,163 @@ enum QCMeasurement implements QCNotificationListener {
         m_usesSecureConnection = usesSecureConnection;
     }
 
+    final int getConnectionTimeout() {
+        return m_connectionTimeout;
+    }
+
+    final int getSocketTimeout() {
+        return m_socketTimeout;
+    }
+
+    final void setNetworkTimeouts(int connectionTimeout, int socketTimeout) {
+        m_connectionTimeout = connectionTimeout;
+        m_socketTimeout = socketTimeout;
+    }
+
+    final boolean isAsyncStartUp() {
+        return m_asyncStartUp;
+    }
+
+    final void setAsyncStartUp(boolean asyncStartUp) {
+        m_asyncStartUp = asyncStartUp;
+    }
+
+    final boolean isTrackingActivities() {
+        return m_tracksActivities;
+    }
+
+    final synchronized void startActivityTracking(Application application, String apiKey, String networkCode,
+                                                  String userIdOrNull, String[] labelsOrNull, boolean isDirectedAtKids) {
+        if (m_tracksActivities) return;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            QCLog.e(TAG, "Automatic activity tracking needs Android 4.0 or later.  Call activityStart and activityStop instead.");
+            return;
+        }
+        if (!validateApiKeyAndNetworkCode(apiKey != null ? apiKey : QCUtility.getAPIKey(application), networkCode)) return;
+
+        //the only reference to the tracker, which is not loaded until this runs past the version check
+        QCActivityTracker.register(application, apiKey, networkCode, userIdOrNull, labelsOrNull, isDirectedAtKids);
+        m_tracksActivities = true;
+    }
+
+    final String getHashedUserId() {
+        return m_userId;
+    }
+
+    final boolean isUnmeteredUploadsOnly() {
+        return m_unmeteredUploadsOnly;
+    }
+
+    final void setUnmeteredUploadsOnly(boolean unmeteredUploadsOnly) {
+        m_unmeteredUploadsOnly = unmeteredUploadsOnly;
+    }
+
+    final int getMaxStoredEvents() {
+        return m_maxStoredEvents;
+    }
+
+    final long getMaxStoredBytes() {
+        return m_maxStoredBytes;
+    }
+
+    final QCEvictionPolicy getEvictionPolicy() {
+        return m_evictionPolicy;
+    }
+
+    final void setStoredEventLimits(int maxEvents, long maxBytes, QCEvictionPolicy evictionPolicy) {
+        m_maxStoredEvents = maxEvents;
+        m_maxStoredBytes = maxBytes;
+        m_evictionPolicy = evictionPolicy;
+    }
+
+    final boolean isScheduledUploads() {
+        return m_scheduledUploads;
+    }
+
+    final void setScheduledUploads(boolean scheduledUploads) {
+        m_scheduledUploads = scheduledUploads;
+        if (!scheduledUploads && m_context != null) {
+            getUploadScheduler().cancel(m_context);
+        }
+    }
+
+    final synchronized QCUploadScheduler getUploadScheduler() {
+        if (m_uploadScheduler == null) {
+            m_uploadScheduler = new QCAlarmUploadScheduler();
+        }
+        return m_uploadScheduler;
+    }
+
+    final synchronized void setUploadScheduler(QCUploadScheduler uploadScheduler) {
+        m_uploadScheduler = uploadScheduler;
+    }
+
+    //called by QCUploadReceiver on the main thread, possibly in a process that was started only for the upload.  done
+    //is run on the main thread once the whole backlog is sent or the upload gave up
+    final void uploadScheduled(Context context, final Runnable done) {
+        if (m_context == null) {
+            m_context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        }
+        //the opt out, the stored event count and the cached policy are all read from disk
+        QCExecutor.INSTANCE.execute(new QCExecutor.Task() {
+            @Override
+            public void run() {
+                if (QCOptOutUtility.isOptedOut(m_context)) {
+                    QCExecutor.INSTANCE.postToMain(done);
+                    return;
+                }
+                final QCDataManager manager = getOrCreateManager();
+                //without a session there is no api key to download a policy with, so only a cached one can be used
+                final QCPolicy policy = m_policy != null ? m_policy : QCPolicy.getCachedPolicy(m_context);
+                QCExecutor.INSTANCE.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (manager.getEventCount() > 0) {
+                            manager.uploadScheduled(policy, done);
+                        } else {
+                            done.run();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public boolean isRequired() {
+                return true;
+            }
+
+            @Override
+            public void rejected() {
+            }
+        });
+    }
+
+    //start up runs on the call thread with asynchronous start-up and a scheduled upload on the SDK thread, so either
+    //can be first, and there must only ever be one manager and one database helper
+    private synchronized QCDataManager getOrCreateManager() {
+        if (m_manager == null) {
+            m_manager = new QCDataManager(m_context);
+        }
+        return m_manager;
+    }
+
+    final synchronized QCTransport getTransport() {
+        if (m_transport == null) {
+            //HttpURLConnection could not safely reuse connections before Gingerbread
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                m_transport = new QCUrlConnectionTransport();
+            } else {
+                m_transport = new QCApacheTransport();
+            }
+        }
+        return m_transport;
+    }
+
+    //lets tests send requests somewhere other than the network, null goes back to the default transport
+    final synchronized void setTransport(QCTransport transport) {
+        m_transport = transport;
+    }
+
     private void setUserIdentifier(String userId) {
         if (userId == null) {
             m_userId = null;
@@ -250,7 +704,7 @@ enum QCMeasurement implements QCNotificationListener {
     }
 
     final void logLatency(String uploadId, long time) {
-        if (m_optedOut) return;
+        if (m_optedOut || m_manager == null) return;
         m_manager.postEvent(QCEvent.logLatency(m_context, m_sessionId, uploadId, Long.toString(time)), m_policy);
     }
 
@@ -307,6 +761,9 @@ enum QCMeasurement implements QCNotificationListener {
                 m_policy.updatePolicy(m_context);
                 logBeginSessionEvent(QCEvent.QC_BEGIN_LAUNCH_REASON, new String[]{"_OPT-IN"}, null);
             } else {
+                if (m_aggregator != null) {
+                    m_aggregator.clear();
+                }
                 QCUtility.dumpAppInstallID(m_context);
                 m_context.deleteDatabase(QCDatabaseDAO.NAME);
             }
@@ -340,6 +797,7 @@ enum QCMeasurement implements QCNotificationListener {
             m_context.deleteDatabase(QCDatabaseDAO.NAME);
         }
         m_numActiveContext = 0;
+        m_pendingPause = 0;
         m_sessionId = null;
         m_manager = null;
         m_policy = null;
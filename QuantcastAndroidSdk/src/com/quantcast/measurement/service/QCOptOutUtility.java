@@ -14,7 +14,6 @@ package com.quantcast.measurement.service;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.os.AsyncTask;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -79,7 +78,7 @@ class QCOptOutUtility {
     }
 
     static void askEveryone(final Context context, boolean optedOut, boolean shouldUpdate) {
-        new AsyncTask<Boolean, Void, Boolean>() {
+        new QCAsyncTask<Boolean, Boolean>() {
 
             @Override
             protected Boolean doInBackground(Boolean... booleans) {
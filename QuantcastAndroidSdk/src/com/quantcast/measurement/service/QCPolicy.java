@@ -13,25 +13,21 @@ package com.quantcast.measurement.service;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.telephony.TelephonyManager;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 class QCPolicy {
@@ -47,6 +43,12 @@ class QCPolicy {
     private String m_salt;
     private long m_blackoutUntil;
     private Long m_sessionTimeout;
+    private boolean m_gzipUploads;
+    private Integer m_minUploadSize;
+    private Integer m_maxUploadSize;
+    private Integer m_maxLowPriorityUploadSize;
+    private double m_sampleRate;
+    private Map<String, Double> m_eventSampleRates;
 
     private boolean m_policyIsLoaded;
 
@@ -56,6 +58,12 @@ class QCPolicy {
     private static final String SALT_KEY = "salt";
     private static final String BLACKOUT_KEY = "blackout";
     private static final String SESSION_TIMEOUT_KEY = "sessionTimeOutSeconds";
+    private static final String GZIP_UPLOADS_KEY = "gzip";
+    private static final String MIN_UPLOAD_SIZE_KEY = "minUploadSize";
+    private static final String MAX_UPLOAD_SIZE_KEY = "maxUploadSize";
+    private static final String MAX_LOW_PRIORITY_UPLOAD_SIZE_KEY = "maxLowPriorityUploadSize";
+    private static final String SAMPLE_RATE_KEY = "sampleRate";
+    private static final String EVENT_SAMPLE_RATES_KEY = "eventSampleRates";
     private static final String POLICY_REQUEST_BASE_WITHOUT_SCHEME = "m.quantcount.com/policy.json";
     private static final String POLICY_REQUEST_API_KEY_PARAMETER = "a";
     private static final String POLICY_REQUEST_API_VERSION_PARAMETER = "v";
@@ -110,6 +118,8 @@ class QCPolicy {
     private QCPolicy(Context context, String policyURL) {
         m_policyURL = policyURL;
         m_policyIsLoaded = false;
+        //nothing is sampled until a policy says so
+        m_sampleRate = 1;
         boolean optedOut = QCOptOutUtility.isOptedOut(context);
         if (optedOut) {
             m_policyIsLoaded = false;
@@ -123,6 +133,17 @@ class QCPolicy {
         }
     }
 
+    //never downloads, used when there is no session to build the policy url from
+    static QCPolicy getCachedPolicy(Context context) {
+        return new QCPolicy(context);
+    }
+
+    private QCPolicy(Context context) {
+        m_policyURL = null;
+        m_sampleRate = 1;
+        m_policyIsLoaded = !QCOptOutUtility.isOptedOut(context) && checkPolicy(context, true);
+    }
+
     public void updatePolicy(Context context) {
         if (QCReachability.isConnected(context)) {
             getPolicy(context, m_policyURL);
@@ -142,30 +163,24 @@ class QCPolicy {
         //if we are blacked out we cant go get the policy yet
         if (isBlackedOut()) return;
 
-        new AsyncTask<String, Void, Boolean>() {
+        new QCAsyncTask<String, Boolean>() {
+
+            //without a policy nothing can be uploaded for the rest of the session
+            @Override
+            protected boolean isRequired() {
+                return true;
+            }
 
             @Override
             protected Boolean doInBackground(String... strings) {
                 boolean loadedPolicy = checkPolicy(context, false);
                 if (!loadedPolicy) {
                     String jsonString = null;
-                    DefaultHttpClient defaultHttpClient = new DefaultHttpClient();
-                    InputStream inputStream = null;
                     try {
-                        HttpGet method = new HttpGet(strings[0]);
-                        HttpResponse response = defaultHttpClient.execute(method);
-                        inputStream = response.getEntity().getContent();
-                        jsonString = readStreamToString(inputStream);
+                        jsonString = QCMeasurement.INSTANCE.getTransport().get(strings[0]);
                     } catch (Exception e) {
                         QCLog.e(TAG, "Could not download policy", e);
                         QCMeasurement.INSTANCE.logSDKError("policy-download-failure", e.getMessage(), null);
-                    } finally {
-                        if (inputStream != null) {
-                            try {
-                                inputStream.close();
-                            } catch (IOException ignored) {
-                            }
-                        }
                     }
                     if (jsonString != null) {
                         savePolicy(context, jsonString);
@@ -184,7 +199,7 @@ class QCPolicy {
     }
 
 
-    //done only in AsyncTask
+    //done only on the SDK thread
     private boolean parsePolicy(String policyJsonString) {
 
         boolean successful = true;
@@ -192,6 +207,12 @@ class QCPolicy {
         m_salt = null;
         m_blackoutUntil = 0;
         m_sessionTimeout = null;
+        m_gzipUploads = false;
+        m_minUploadSize = null;
+        m_maxUploadSize = null;
+        m_maxLowPriorityUploadSize = null;
+        m_sampleRate = 1;
+        m_eventSampleRates = null;
 
         if (!"".equals(policyJsonString)) {
             try {
@@ -243,6 +264,71 @@ class QCPolicy {
                         QCLog.w(TAG, "Failed to parse session timeout from JSON.", e);
                     }
                 }
+
+                if (policyJSON.has(GZIP_UPLOADS_KEY)) {
+                    try {
+                        m_gzipUploads = policyJSON.getBoolean(GZIP_UPLOADS_KEY);
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse gzip from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(MIN_UPLOAD_SIZE_KEY)) {
+                    try {
+                        m_minUploadSize = policyJSON.getInt(MIN_UPLOAD_SIZE_KEY);
+                        if (m_minUploadSize <= 0) {
+                            m_minUploadSize = null;
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse min upload size from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(MAX_UPLOAD_SIZE_KEY)) {
+                    try {
+                        m_maxUploadSize = policyJSON.getInt(MAX_UPLOAD_SIZE_KEY);
+                        if (m_maxUploadSize <= 0 || (m_minUploadSize != null && m_maxUploadSize < m_minUploadSize)) {
+                            m_maxUploadSize = null;
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse max upload size from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(MAX_LOW_PRIORITY_UPLOAD_SIZE_KEY)) {
+                    try {
+                        m_maxLowPriorityUploadSize = policyJSON.getInt(MAX_LOW_PRIORITY_UPLOAD_SIZE_KEY);
+                        if (m_maxLowPriorityUploadSize < 0) {
+                            m_maxLowPriorityUploadSize = null;
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse max low priority upload size from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(SAMPLE_RATE_KEY)) {
+                    try {
+                        m_sampleRate = clampSampleRate(policyJSON.getDouble(SAMPLE_RATE_KEY));
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse sample rate from JSON.", e);
+                    }
+                }
+
+                if (policyJSON.has(EVENT_SAMPLE_RATES_KEY)) {
+                    try {
+                        JSONObject ratesJSON = policyJSON.getJSONObject(EVENT_SAMPLE_RATES_KEY);
+                        if (ratesJSON.length() > 0) {
+                            m_eventSampleRates = new HashMap<String, Double>(ratesJSON.length());
+                            Iterator<?> names = ratesJSON.keys();
+                            while (names.hasNext()) {
+                                String name = (String) names.next();
+                                m_eventSampleRates.put(name, clampSampleRate(ratesJSON.getDouble(name)));
+                            }
+                        }
+                    } catch (JSONException e) {
+                        QCLog.w(TAG, "Failed to parse event sample rates from JSON.", e);
+                    }
+                }
             } catch (JSONException e) {
                 QCLog.w(TAG, "Failed to parse JSON from string: " + policyJsonString);
                 successful = false;
@@ -254,7 +340,7 @@ class QCPolicy {
     static final String POLICY_DIRECTORY = "com.quantcast";
     static final String POLICY_FILENAME = "qc-policy.json";
 
-    //done only in AsyncTask
+    //done only on the SDK thread
     private void savePolicy(Context context, String policy) {
         File base = context.getDir(POLICY_DIRECTORY, Context.MODE_PRIVATE);
         File policyFile = new File(base, POLICY_FILENAME);
@@ -284,7 +370,7 @@ class QCPolicy {
             FileInputStream input = null;
             try {
                 input = new FileInputStream(policyFile);
-                String policy = readStreamToString(input);
+                String policy = QCUtility.readStreamToString(input);
                 retval = parsePolicy(policy);
                 //check if it should be updated
                 retval = retval && (force || ((System.currentTimeMillis() - date) < POLICY_CACHE_LENGTH));
@@ -309,6 +395,14 @@ class QCPolicy {
 
     }
 
+    /**
+     * @return true if no app event could be sent under this policy, so there is no point in building one.  A
+     * blacklisted event name only strips the name, the event itself is still sent.
+     */
+    boolean suppressesAppEvents() {
+        return isBlackedOut() || (policyIsLoaded() && isBlacklisted(QCEvent.QC_EVENT_KEY));
+    }
+
     boolean isBlacklisted(String key) {
         if (key == null) return true;
 
@@ -331,23 +425,40 @@ class QCPolicy {
         return m_sessionTimeout;
     }
 
-    private String readStreamToString(InputStream input) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-        BufferedReader reader = null;
-        try{
-            reader = new BufferedReader(new InputStreamReader(input));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                stringBuilder.append(line);
-            }
-        }finally {
-            if (reader != null) {
-                try{
-                    reader.close();
-                }catch (IOException ignored){}
+    boolean shouldGzipUploads() {
+        return m_gzipUploads;
+    }
+
+    Integer getMinUploadSize() {
+        return m_minUploadSize;
+    }
+
+    Integer getMaxUploadSize() {
+        return m_maxUploadSize;
+    }
+
+    Integer getMaxLowPriorityUploadSize() {
+        return m_maxLowPriorityUploadSize;
+    }
+
+    /**
+     * @return the fraction of app events with the given name that should be logged, between 0 and 1.  Every event is
+     * logged until a policy is loaded.
+     */
+    double getSampleRate(String eventName) {
+        if (!policyIsLoaded()) return 1;
+        double retval = m_sampleRate;
+        if (m_eventSampleRates != null && eventName != null) {
+            Double eventRate = m_eventSampleRates.get(eventName);
+            if (eventRate != null) {
+                retval = eventRate;
             }
         }
-        return stringBuilder.toString();
+        return retval;
+    }
+
+    private static double clampSampleRate(double rate) {
+        return Double.isNaN(rate) ? 1 : Math.max(0, Math.min(1, rate));
     }
 
 }
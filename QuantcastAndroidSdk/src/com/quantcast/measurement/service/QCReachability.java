@@ -14,6 +14,7 @@ package com.quantcast.measurement.service;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
 
 class QCReachability {
 
@@ -27,6 +28,22 @@ class QCReachability {
         return retval;
     }
 
+    static boolean isUnmetered(Context context) {
+        boolean retval = false;
+        ConnectivityManager conn = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (conn != null) {
+            NetworkInfo ni = conn.getActiveNetworkInfo();
+            if (ni != null && ni.isConnected()) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    retval = !conn.isActiveNetworkMetered();
+                } else {
+                    retval = ni.getType() == ConnectivityManager.TYPE_WIFI || ni.getType() == ConnectivityManager.TYPE_ETHERNET;
+                }
+            }
+        }
+        return retval;
+    }
+
     static String networkType(Context context) {
         String retval = "unknown";
         ConnectivityManager conn = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -48,4 +65,28 @@ class QCReachability {
         return retval;
     }
 
+    /**
+     * @return "wifi" or "mobile", or the name of any other connected network type, without the cellular subtype that
+     * {@link #networkType(Context)} reports.
+     */
+    static String transportType(Context context) {
+        String retval = "unknown";
+        ConnectivityManager conn = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (conn != null) {
+            NetworkInfo ni = conn.getActiveNetworkInfo();
+            if (ni != null && ni.isConnected()) {
+                if (ni.getType() == ConnectivityManager.TYPE_MOBILE) {
+                    retval = "mobile";
+                } else if (ni.getType() == ConnectivityManager.TYPE_WIFI) {
+                    retval = "wifi";
+                } else {
+                    retval = ni.getTypeName();
+                }
+            } else {
+                retval = "disconnected";
+            }
+        }
+        return retval;
+    }
+
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Point;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+import android.view.Display;
+import android.view.WindowManager;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Snapshot of the app and device parameters sent with every load event.
+ * <p/>
+ * Building it takes several system service calls and some reflection, so it is built once and reused until the
+ * configuration (which covers locale, screen size and SIM carrier) or the connectivity changes.
+ */
+class QCSessionContext {
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCSessionContext.class);
+
+    private static volatile QCSessionContext cached;
+    private static boolean listeningForConnectivity;
+
+    private static final BroadcastReceiver CONNECTIVITY_RECEIVER = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            //the sticky broadcast delivered on registration is not a change
+            if (!isInitialStickyBroadcast()) {
+                cached = null;
+            }
+        }
+    };
+
+    private final Map<String, String> m_parameters;
+    private final Configuration m_configuration;
+
+    static QCSessionContext get(Context context) {
+        Configuration configuration = context.getResources().getConfiguration();
+        QCSessionContext snapshot = cached;
+        if (snapshot == null || snapshot.m_configuration.diff(configuration) != 0) {
+            listenForConnectivity(context);
+            snapshot = new QCSessionContext(context, configuration);
+            cached = snapshot;
+        }
+        return snapshot;
+    }
+
+    private static synchronized void listenForConnectivity(Context context) {
+        if (!listeningForConnectivity) {
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            appContext.registerReceiver(CONNECTIVITY_RECEIVER, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            listeningForConnectivity = true;
+        }
+    }
+
+    private QCSessionContext(Context context, Configuration configuration) {
+        m_configuration = new Configuration(configuration);
+        Map<String, String> params = new HashMap<String, String>();
+
+        put(params, QCEvent.QC_CONNECTION_KEY, QCReachability.networkType(context));
+        put(params, QCEvent.QC_APPNAME_KEY, QCUtility.getAppName(context));
+
+        String packageName = context.getPackageName();
+        put(params, QCEvent.QC_PACKAGEID_KEY, packageName);
+
+        PackageManager packageManager = context.getPackageManager();
+        if (packageManager != null) {
+            try {
+                PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
+                if (packageInfo != null) {
+                    put(params, QCEvent.QC_VERSION_KEY, packageInfo.versionName);
+                    put(params, QCEvent.QC_BUILDNUM_KEY, Integer.toString(packageInfo.versionCode));
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                        try {
+                            Field field = PackageInfo.class.getField("firstInstallTime");
+                            long timestamp = field.getLong(packageInfo);
+                            put(params, QCEvent.QC_INSTALLDATE_KEY, String.valueOf(timestamp));
+                        } catch (Exception e1) {
+                            //error getting install time so get next best
+                            put(params, QCEvent.QC_INSTALLDATE_KEY, String.valueOf(context.getFilesDir().lastModified()));
+                        }
+                    } else {
+                        put(params, QCEvent.QC_INSTALLDATE_KEY, String.valueOf(context.getFilesDir().lastModified()));
+                    }
+                }
+            } catch (PackageManager.NameNotFoundException nnfe) {
+                QCLog.e(TAG, "Unable to get application info for this app.", nnfe);
+            }
+        }
+
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        if (windowManager != null) {
+            Display d = windowManager.getDefaultDisplay();
+            String dims;
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2){
+                Point point = new Point();
+                d.getSize(point);
+                dims = String.format("%dx%dx32", point.x, point.y);
+            }else{
+                //noinspection deprecation
+                dims = String.format("%dx%dx32", d.getWidth(), d.getHeight());
+            }
+            put(params, QCEvent.QC_SCREENRES_KEY, dims);
+        }
+
+        TelephonyManager tel = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        if (tel != null) {
+            String carrierInfo = tel.getNetworkOperator();
+            //no network?  then try the sim
+            if (carrierInfo == null || carrierInfo.length() <= 0) {
+                carrierInfo = tel.getSimOperator();
+            }
+            if (carrierInfo != null && carrierInfo.length() > 0) {
+                if (carrierInfo.length() <= 3) {
+                    put(params, QCEvent.QC_MCC_KEY, carrierInfo);
+                } else {
+                    put(params, QCEvent.QC_MCC_KEY, carrierInfo.substring(0, 3));
+                    put(params, QCEvent.QC_MNC_KEY, carrierInfo.substring(3));
+                }
+            }
+
+            String countryCode = tel.getNetworkCountryIso();
+            if (countryCode == null || countryCode.length() == 0) {
+                countryCode = tel.getSimCountryIso();
+            }
+            if (countryCode != null && countryCode.length() > 0) {
+                put(params, QCEvent.QC_COUNTRYCODE_KEY, countryCode);
+            }
+
+            String carrierName = tel.getNetworkOperatorName();
+            if (carrierName == null || carrierName.length() == 0) {
+                carrierName = tel.getSimOperatorName();
+            }
+            if (carrierName != null && carrierName.length() > 0) {
+                put(params, QCEvent.QC_CARRIERNAME_KEY, carrierName);
+            }
+        }
+        int screenLayout = configuration.screenLayout & Configuration.SCREENLAYOUT_SIZE_MASK;
+        boolean isTablet = screenLayout == 4 || screenLayout == Configuration.SCREENLAYOUT_SIZE_LARGE;
+        put(params, QCEvent.QC_DEVICETYPE_KEY, isTablet ? "Tablet" : "Handset");
+
+        put(params, QCEvent.QC_DEVICEOS_KEY, QCEvent.QC_DEVICEOS_VALUE);
+        put(params, QCEvent.QC_DEVICEMODEL_KEY, Build.MODEL);
+        put(params, QCEvent.QC_OSVERSION_KEY, Build.VERSION.RELEASE);
+        put(params, QCEvent.QC_MANUFACTURER_KEY, Build.MANUFACTURER);
+
+        Locale locale = Locale.getDefault();
+        put(params, QCEvent.QC_LOCALECOUNTRY_KEY, locale.getISO3Country());
+        put(params, QCEvent.QC_LOCALELANG_KEY, locale.getISO3Language());
+
+        m_parameters = Collections.unmodifiableMap(params);
+    }
+
+    Map<String, String> getParameters() {
+        return m_parameters;
+    }
+
+    //same rule as QCEvent.addParameter, nulls are left out
+    private static void put(Map<String, String> params, String key, String value) {
+        if (value != null) {
+            params.put(key, value);
+        }
+    }
+}
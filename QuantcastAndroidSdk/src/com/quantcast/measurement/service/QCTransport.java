@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * The HTTP requests the SDK makes.  All methods are synchronous and are only called from the SDK thread.
+ */
+interface QCTransport {
+
+    /**
+     * Posts a body to the url.  The response body is read and discarded so the connection can be reused.
+     *
+     * @return the HTTP status code of the response
+     */
+    int post(String url, Map<String, String> headers, Body body) throws IOException;
+
+    /**
+     * @return the body of the response to a GET request for the url
+     */
+    String get(String url) throws IOException;
+
+    /**
+     * A request body that is written while the request is being sent.
+     */
+    interface Body {
+        /**
+         * @return the exact length of the body in bytes, or -1 if it is not known ahead of time and the body must be sent chunked
+         */
+        long getContentLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Random;
+
+/**
+ * Keeps track of failed uploads and how long to wait before the next attempt.
+ * <p/>
+ * Every consecutive failure doubles the wait, up to a cap, and a random part of the wait is added so devices that
+ * failed together do not retry together.  The state is saved in the shared preferences so a restarted process keeps
+ * waiting, and is written on the SDK thread.  Moving to a different transport, wifi or mobile, than the one the last
+ * failure happened on clears the wait.  A cellular subtype change such as 3G to LTE does not.
+ */
+class QCUploadBackoff {
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCUploadBackoff.class);
+
+    static final long BASE_DELAY = 30 * 1000; // 30 seconds
+    static final long MAX_DELAY = 60 * 60 * 1000; // 1 hour
+
+    private static final String FAILURES_PREF_NAME = "uploadFailures";
+    private static final String RETRY_AT_PREF_NAME = "uploadRetryAt";
+    private static final String TRANSPORT_PREF_NAME = "uploadFailureTransport";
+
+    private final SharedPreferences m_preferences;
+    private final Random m_random;
+
+    private int m_failures;
+    private long m_retryAt;
+    private String m_transport;
+
+    QCUploadBackoff(Context context) {
+        m_preferences = context.getSharedPreferences(QCUtility.SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        m_random = new Random();
+        m_failures = m_preferences.getInt(FAILURES_PREF_NAME, 0);
+        m_retryAt = m_preferences.getLong(RETRY_AT_PREF_NAME, 0);
+        m_transport = m_preferences.getString(TRANSPORT_PREF_NAME, null);
+    }
+
+    /**
+     * @param transport the current {@link QCReachability#transportType(Context)}
+     * @return true if an upload may be attempted now on the given transport.
+     */
+    synchronized boolean canUpload(long now, String transport) {
+        if (m_failures == 0) return true;
+
+        if (transport != null && !transport.equals(m_transport)) {
+            QCLog.i(TAG, "Transport changed from " + m_transport + " to " + transport + ", resetting upload backoff.");
+            reset();
+            return true;
+        }
+        //a retry time further out than the cap means the clock was turned back
+        return now >= m_retryAt || m_retryAt - now > MAX_DELAY;
+    }
+
+    /**
+     * @return the number of milliseconds until the next attempt is allowed, or 0 if one is allowed now.
+     */
+    synchronized long getRetryDelay(long now) {
+        if (m_failures == 0) return 0;
+        return Math.max(0, Math.min(MAX_DELAY, m_retryAt - now));
+    }
+
+    synchronized void uploadFailed(long now, String transport) {
+        m_failures++;
+        long delay = MAX_DELAY;
+        //past 2^20 the delay is capped anyway, and the shift would overflow
+        if (m_failures <= 20) {
+            delay = Math.min(MAX_DELAY, BASE_DELAY << (m_failures - 1));
+        }
+        //wait at least half the delay and a random part of the other half
+        delay = delay / 2 + (long) (m_random.nextDouble() * (delay / 2));
+        m_retryAt = now + delay;
+        m_transport = transport;
+        QCLog.i(TAG, "Upload failed " + m_failures + " times in a row, next attempt in " + delay + "ms.");
+        save();
+    }
+
+    synchronized void uploadSucceeded() {
+        reset();
+    }
+
+    synchronized void reset() {
+        if (m_failures == 0 && m_transport == null) return;
+        m_failures = 0;
+        m_retryAt = 0;
+        m_transport = null;
+        save();
+    }
+
+    //commit() writes the file before returning, which is not allowed to hold up the main thread.  The state is
+    //copied here so the writes land in the order they were made
+    private void save() {
+        final int failures = m_failures;
+        final long retryAt = m_retryAt;
+        final String transport = m_transport;
+        QCExecutor.INSTANCE.execute(new QCExecutor.Task() {
+            @Override
+            public void run() {
+                SharedPreferences.Editor editor = m_preferences.edit();
+                editor.putInt(FAILURES_PREF_NAME, failures);
+                editor.putLong(RETRY_AT_PREF_NAME, retryAt);
+                editor.putString(TRANSPORT_PREF_NAME, transport);
+                editor.commit();
+            }
+
+            @Override
+            public boolean isRequired() {
+                return true;
+            }
+
+            @Override
+            public void rejected() {
+            }
+        });
+    }
+}
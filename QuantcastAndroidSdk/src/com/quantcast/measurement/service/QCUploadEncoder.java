@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes the upload JSON envelope straight from the database cursor to an output stream, one event at a time,
+ * so the size of a batch does not change how much memory an upload needs.
+ * <p/>
+ * Characters outside of printable ASCII are escaped so the body is plain ASCII.
+ */
+class QCUploadEncoder {
+
+    private static final String CHARSET = "US-ASCII";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String m_uploadId;
+    private final QCDatabaseDAO m_database;
+    private final SQLiteDatabase m_db;
+    private final QCPolicy m_policy;
+
+    private int m_eventCount;
+
+    /**
+     * @param uploadId the id the events to send are leased to, which is also sent as the id of the upload
+     */
+    QCUploadEncoder(String uploadId, QCDatabaseDAO database, SQLiteDatabase db, QCPolicy policy) {
+        m_uploadId = uploadId;
+        m_database = database;
+        m_db = db;
+        m_policy = policy;
+    }
+
+    String getUploadId() {
+        return m_uploadId;
+    }
+
+    /**
+     * @return the number of stored events read by the last {@link #writeTo(OutputStream)}, including events the policy did not allow to be sent.
+     */
+    int getEventCount() {
+        return m_eventCount;
+    }
+
+    /**
+     * Writes the whole upload.  The stream is flushed but not closed.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        m_eventCount = 0;
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET), BUFFER_SIZE);
+
+        writer.write('{');
+        writeString(writer, QCDataUploader.QC_UPLOAD_ID_KEY);
+        writer.write(':');
+        writeString(writer, m_uploadId);
+        writer.write(',');
+        writeString(writer, QCDataUploader.QC_QCV_KEY);
+        writer.write(':');
+        writeString(writer, QCUtility.API_VERSION);
+        writer.write(',');
+        writeString(writer, QCDataUploader.QC_EVENTS_KEY);
+        writer.write(":[");
+
+        try {
+            m_database.readLeasedEvents(m_db, m_uploadId, m_policy, new QCDatabaseDAO.EventCallback() {
+                private boolean m_first = true;
+
+                @Override
+                public void eventRead(long eventId, QCEvent event) {
+                    m_eventCount++;
+                    if (event != null) {
+                        try {
+                            if (!m_first) {
+                                writer.write(',');
+                            }
+                            writeObject(writer, event.getParameters());
+                            m_first = false;
+                        } catch (IOException e) {
+                            throw new WriteFailedException(e);
+                        }
+                    }
+                }
+            });
+        } catch (WriteFailedException e) {
+            throw e.getCause();
+        }
+
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static void writeObject(Writer writer, Map<String, String> params) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            writeString(writer, entry.getKey());
+            writer.write(':');
+            writeString(writer, entry.getValue());
+            first = false;
+        }
+        writer.write('}');
+    }
+
+    static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        writer.write("\\u");
+                        writer.write(HEX_DIGITS[(c >> 12) & 0xf]);
+                        writer.write(HEX_DIGITS[(c >> 8) & 0xf]);
+                        writer.write(HEX_DIGITS[(c >> 4) & 0xf]);
+                        writer.write(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
+    }
+
+    //carries an IOException out of the database callback
+    private static class WriteFailedException extends RuntimeException {
+        WriteFailedException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Runs the uploads scheduled by {@link QuantcastClient#setScheduledUploads(boolean)}.  Needs to be declared in the
+ * app's manifest for scheduled uploads to work after the app has been closed:
+ * <pre>
+ * &lt;receiver android:name="com.quantcast.measurement.service.QCUploadReceiver" android:exported="false"/&gt;
+ * </pre>
+ * The receiver stays active until the whole backlog is sent, so the process is not dropped in the middle of an
+ * upload.  If the app holds the WAKE_LOCK permission the device is also kept awake for that time.
+ */
+public class QCUploadReceiver extends BroadcastReceiver {
+
+    static final String ACTION_UPLOAD = "com.quantcast.measurement.service.UPLOAD";
+
+    //the receiver is let go after 50 seconds, short of the minute after which a background broadcast counts as stuck.
+    //Whatever is left waits for the next scheduled upload
+    static final long MAX_UPLOAD_TIME = 50 * 1000; // 50 seconds
+
+    private static final QCLog.Tag TAG = new QCLog.Tag(QCUploadReceiver.class);
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_UPLOAD.equals(intent.getAction())) return;
+
+        if (isCharging(context) && QCReachability.isConnected(context)) {
+            QCLog.i(TAG, "Running scheduled upload.");
+            //goAsync keeps the receiver, and with it the process, alive after onReceive returns
+            final PendingResult result = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? goAsync() : null;
+            final PowerManager.WakeLock wakeLock = acquireWakeLock(context);
+            Runnable done = new Runnable() {
+                private boolean m_finished;
+
+                @Override
+                public void run() {
+                    if (m_finished) return;
+                    m_finished = true;
+                    if (wakeLock != null && wakeLock.isHeld()) {
+                        wakeLock.release();
+                    }
+                    if (result != null) {
+                        result.finish();
+                    }
+                }
+            };
+            QCExecutor.INSTANCE.postToMainDelayed(done, MAX_UPLOAD_TIME);
+            QCMeasurement.INSTANCE.uploadScheduled(context, done);
+        } else {
+            QCLog.i(TAG, "Not charging or not connected, postponing scheduled upload.");
+            QCMeasurement.INSTANCE.getUploadScheduler().schedule(context, QCDataManager.SCHEDULED_UPLOAD_RETRY_DELAY);
+        }
+    }
+
+    private static PowerManager.WakeLock acquireWakeLock(Context context) {
+        if (context.checkCallingOrSelfPermission(Manifest.permission.WAKE_LOCK) != PackageManager.PERMISSION_GRANTED) {
+            return null;
+        }
+        PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (power == null) return null;
+        PowerManager.WakeLock wakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG.safeTag);
+        wakeLock.setReferenceCounted(false);
+        //the timeout is a backstop in case the upload never reports back
+        wakeLock.acquire(MAX_UPLOAD_TIME);
+        return wakeLock;
+    }
+
+    private static boolean isCharging(Context context) {
+        //battery changes are sticky, so this reads the last state without registering anything
+        Intent battery = context.getApplicationContext().registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
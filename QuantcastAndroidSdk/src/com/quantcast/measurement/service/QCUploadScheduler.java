@@ -0,0 +1,28 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.content.Context;
+
+/**
+ * Hands a pending upload to the system so it runs later, at a time the system picks.
+ * When it is time, {@link QCUploadReceiver} is expected to be called.
+ */
+interface QCUploadScheduler {
+
+    /**
+     * Asks for one upload no earlier than the given delay.  Replaces any upload scheduled before.
+     */
+    void schedule(Context context, long delay);
+
+    void cancel(Context context);
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides how many events go into each upload.
+ * <p/>
+ * The batch doubles after every fast upload of a full batch and halves after a slow or failed one.  How large it may
+ * grow depends on the network: all the way up to the maximum on wifi, a fraction of it on cellular and only a few
+ * events on 2G, where every extra kilobyte keeps the radio up longer.  The batch starts over whenever the network
+ * type changes.
+ */
+class QCUploadSizer {
+
+    static final int DEFAULT_MIN_SIZE = 2;
+    static final int DEFAULT_MAX_SIZE = 200;
+
+    static final long FAST_UPLOAD_TIME = 2 * 1000; // 2 seconds
+    static final long SLOW_UPLOAD_TIME = 10 * 1000; // 10 seconds
+
+    private static final int CELLULAR_DIVISOR = 2;
+    private static final int SLOW_CELLULAR_DIVISOR = 8;
+
+    //subtype names reported by NetworkInfo for 2G connections
+    private static final Set<String> SLOW_NETWORK_TYPES = new HashSet<String>(Arrays.asList(
+            "GPRS", "EDGE", "CDMA", "1xRTT", "IDEN"));
+
+    private int m_minSize;
+    private int m_maxSize;
+    private int m_size;
+    private String m_networkType;
+
+    QCUploadSizer() {
+        m_minSize = DEFAULT_MIN_SIZE;
+        m_maxSize = DEFAULT_MAX_SIZE;
+        m_size = DEFAULT_MIN_SIZE;
+    }
+
+    /**
+     * @return the number of events to read for the next upload on the given network.  Bounds set by the policy win over the local ones.
+     */
+    synchronized int nextBatchSize(String networkType, QCPolicy policy) {
+        int min = m_minSize;
+        int max = m_maxSize;
+        if (policy != null) {
+            if (policy.getMinUploadSize() != null) {
+                min = policy.getMinUploadSize();
+            }
+            if (policy.getMaxUploadSize() != null) {
+                max = policy.getMaxUploadSize();
+            }
+        }
+        int ceiling = Math.max(min, ceilingFor(networkType, max));
+
+        if (networkType == null || !networkType.equals(m_networkType)) {
+            m_networkType = networkType;
+            //start in the middle and let the measurements move it
+            m_size = (min + ceiling) / 2;
+        }
+        m_size = Math.max(min, Math.min(ceiling, m_size));
+        return m_size;
+    }
+
+    /**
+     * Called after an upload was accepted by the server.
+     *
+     * @param eventCount the number of events that were read for the upload
+     * @param time       how long the upload took in milliseconds
+     */
+    synchronized void uploadSucceeded(int eventCount, long time) {
+        if (time >= SLOW_UPLOAD_TIME) {
+            m_size = m_size / 2;
+        } else if (time <= FAST_UPLOAD_TIME && eventCount >= m_size) {
+            //only a full batch says anything about whether a larger one would be fast too
+            m_size = m_size * 2;
+        }
+    }
+
+    synchronized void uploadFailed() {
+        m_size = m_size / 2;
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        m_maxSize = Math.max(m_minSize, maxSize);
+    }
+
+    synchronized int getMinSize() {
+        return m_minSize;
+    }
+
+    synchronized int getMaxSize() {
+        return m_maxSize;
+    }
+
+    private static int ceilingFor(String networkType, int max) {
+        int retval;
+        if ("wifi".equals(networkType)) {
+            retval = max;
+        } else if (SLOW_NETWORK_TYPES.contains(networkType)) {
+            retval = max / SLOW_CELLULAR_DIVISOR;
+        } else {
+            retval = max / CELLULAR_DIVISOR;
+        }
+        return retval;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * {@link QCTransport} on top of HttpURLConnection, which pools keep-alive connections itself.
+ * Bodies of known length are sent with a fixed length, all others chunked.  Should only be used on Gingerbread and up,
+ * earlier HttpURLConnection versions corrupt the connection pool.
+ */
+class QCUrlConnectionTransport implements QCTransport {
+
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    @Override
+    public int post(String url, Map<String, String> headers, Body body) throws IOException {
+        HttpURLConnection connection = open(url);
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+
+            long length = body.getContentLength();
+            if (length >= 0 && length <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int) length);
+            } else {
+                connection.setChunkedStreamingMode(0);
+            }
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                body.writeTo(out);
+            } finally {
+                out.close();
+            }
+
+            int code = connection.getResponseCode();
+            //reading the whole response lets HttpURLConnection reuse the connection
+            InputStream in = code >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                try {
+                    byte[] buffer = new byte[READ_BUFFER_SIZE];
+                    while (in.read(buffer) != -1) {
+                        //discard
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return code;
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public String get(String url) throws IOException {
+        HttpURLConnection connection = open(url);
+        try {
+            return QCUtility.readStreamToString(connection.getInputStream());
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(QCMeasurement.INSTANCE.getConnectionTimeout());
+        connection.setReadTimeout(QCMeasurement.INSTANCE.getSocketTimeout());
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+}
@@ -18,6 +18,10 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.UUID;
@@ -31,11 +35,13 @@ class QCUtility {
 
     private static final long[] HASH_CONSTANTS = {0x811c9dc5, 0xc9dc5118};
 
-    private static final String SHARED_PREFERENCES_NAME = "com.quantcast.measurement.service";
+    static final String SHARED_PREFERENCES_NAME = "com.quantcast.measurement.service";
     private static final String INSTALL_ID_PREF_NAME = "applicationId";
 
 
     private static final Object APPLICATION_ID_LOCK = new Object();
+    //the install id only changes when it is dumped, so it is read from the preferences once per process
+    private static volatile String installId;
 
     private static final String HTTP_SCHEME = "http://";
     private static final String HTTPS_SCHEME = "https://";
@@ -98,14 +104,11 @@ class QCUtility {
     }
 
     protected static String getAppInstallId(Context context) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        String installId = sharedPreferences.getString(INSTALL_ID_PREF_NAME, null);
-
-        if (installId == null) {
-            installId = generateAndSaveAppInstallId(sharedPreferences);
-        }
+        String cached = installId;
+        if (cached != null) return cached;
 
-        return installId;
+        SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        return generateAndSaveAppInstallId(sharedPreferences);
     }
 
     private static String generateAndSaveAppInstallId(SharedPreferences sharedPreferences) {
@@ -119,16 +122,21 @@ class QCUtility {
                 editor.putString(INSTALL_ID_PREF_NAME, installId);
                 editor.commit();
             }
+            //cached under the lock so a concurrent dump cannot be undone
+            QCUtility.installId = installId;
 
             return installId;
         }
     }
 
     protected static void dumpAppInstallID(Context context) {
-        SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
-        Editor editor = sharedPreferences.edit();
-        editor.remove(INSTALL_ID_PREF_NAME);
-        editor.commit();
+        synchronized (APPLICATION_ID_LOCK) {
+            installId = null;
+            SharedPreferences sharedPreferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+            Editor editor = sharedPreferences.edit();
+            editor.remove(INSTALL_ID_PREF_NAME);
+            editor.commit();
+        }
     }
 
     protected static String addScheme(String schemelessUrl) {
@@ -156,4 +164,23 @@ class QCUtility {
         return  valueString;
     }
 
+    static String readStreamToString(InputStream input) throws IOException {
+        StringBuilder stringBuilder = new StringBuilder();
+        BufferedReader reader = null;
+        try{
+            reader = new BufferedReader(new InputStreamReader(input));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                stringBuilder.append(line);
+            }
+        }finally {
+            if (reader != null) {
+                try{
+                    reader.close();
+                }catch (IOException ignored){}
+            }
+        }
+        return stringBuilder.toString();
+    }
+
 }
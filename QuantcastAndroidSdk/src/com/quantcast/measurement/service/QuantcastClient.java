@@ -12,6 +12,7 @@
 package com.quantcast.measurement.service;
 
 import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
@@ -26,6 +27,8 @@ import java.lang.reflect.Method;
  */
 public class QuantcastClient {
 
+    private static final QCLog.Tag TAG = new QCLog.Tag(QuantcastClient.class);
+
     /**
      * Used when initially starting the SDK in the main activity.  This should be called in EVERY Activity's onStart() method.  The context and api key are required.
      *
@@ -38,11 +41,31 @@ public class QuantcastClient {
      *                second dimension in Quantcast Measurement reporting. Nominally, this is a "user class" indicator.
      *                For example, you might use one of two labels in your app: one for user who ave not purchased an app upgrade,
      *                and one for users who have purchased an upgrade.
+     * @return The hashed user identifier of the session, or null if there is none.
      */
     public static String activityStart(Context context, String apiKey, String userId, String[] labels) {
+        if (QCMeasurement.INSTANCE.isTrackingActivities()) {
+            QCLog.w(TAG, "Activities are tracked automatically, ignoring activityStart.");
+            return QCMeasurement.INSTANCE.getHashedUserId();
+        }
         return QCMeasurement.INSTANCE.startUp(context, apiKey, userId, labels);
     }
 
+    /**
+     * Start measuring every Activity automatically.  Call this once, typically from the Application's onCreate().
+     * The SDK will then begin, pause and resume sessions as activities start and stop, and activityStart and activityStop
+     * must no longer be called.  Needs Android 4.0 (API 14) or later, on older devices nothing is tracked and
+     * activityStart and activityStop should be used instead.
+     *
+     * @param application The application whose activities are measured.
+     * @param apiKey      The Quantcast API key that activity for this app should be reported under. Obtain this key from the Quantcast website.
+     * @param userId      (Optional) A consistent identifier for the current user.
+     * @param labels      (Optional) Labels sent with every session start, pause and resume.
+     */
+    public static void startAutomaticActivityTracking(Application application, String apiKey, String userId, String[] labels) {
+        QCMeasurement.INSTANCE.startActivityTracking(application, apiKey, null, userId, labels, false);
+    }
+
     /**
      * Convenience method for all subsequent Activity onStart() calls after the apiKey has been already given for an app
      *
@@ -81,6 +104,7 @@ public class QuantcastClient {
      *               and one for users who have purchased an upgrade.
      */
     public static void activityStop(String[] labels) {
+        if (QCMeasurement.INSTANCE.isTrackingActivities()) return;
         QCMeasurement.INSTANCE.stop(labels);
     }
 
@@ -109,7 +133,7 @@ public class QuantcastClient {
      *             though low-frequency events may not have an audience report on due to the lack of a statistically significant population.
      */
     public static void logEvent(String name) {
-        logEvent(name, new String[0]);
+        QCMeasurement.INSTANCE.logEvent(name, (String[]) null);
     }
 
     /**
@@ -126,7 +150,7 @@ public class QuantcastClient {
      *              and one for users who have purchased an upgrade.
      */
     public static void logEvent(String name, String label) {
-        logEvent(name, new String[]{label});
+        QCMeasurement.INSTANCE.logEvent(name, label);
     }
 
     /**
@@ -187,6 +211,77 @@ public class QuantcastClient {
         return QCMeasurement.INSTANCE.usesSecureConnection();
     }
 
+    /**
+     * Control how long the SDK will wait on the network before giving up on a data upload or policy download.
+     *
+     * @param connectionTimeoutMs The time in milliseconds to wait for a connection to be established.  Defaults to 15 seconds.
+     * @param socketTimeoutMs     The time in milliseconds to wait for data once connected.  Defaults to 30 seconds.
+     */
+    public static void setNetworkTimeouts(int connectionTimeoutMs, int socketTimeoutMs) {
+        QCMeasurement.INSTANCE.setNetworkTimeouts(Math.max(1, connectionTimeoutMs), Math.max(1, socketTimeoutMs));
+    }
+
+    /**
+     * Hold back routine uploads while the device is on a metered network such as cellular data, and send them once an
+     * unmetered network such as wifi is available.  Events that must be sent right away, and a backlog that grows too
+     * large, are still uploaded on metered networks.  Off by default.
+     *
+     * @param unmeteredOnly Whether or not routine uploads should wait for an unmetered network.
+     */
+    public static void setUploadOnUnmeteredNetworksOnly(boolean unmeteredOnly) {
+        QCMeasurement.INSTANCE.setUnmeteredUploadsOnly(unmeteredOnly);
+    }
+
+    /**
+     * Upload routine batches after the app has gone to the background, at a time the system picks and only while the
+     * device is charging and connected, instead of during the session.  The pause or end of a session no longer uploads
+     * either.  SDK errors, and a backlog that grows too large, are still uploaded during the session.  Off by default.
+     * <p/>
+     * The app's manifest must declare {@link QCUploadReceiver} for scheduled uploads to run after the app is closed.
+     *
+     * @param scheduledUploads Whether or not routine uploads should be left to a scheduled background upload.
+     */
+    public static void setScheduledUploads(boolean scheduledUploads) {
+        QCMeasurement.INSTANCE.setScheduledUploads(scheduledUploads);
+    }
+
+    /**
+     * Limit how much the SDK stores while events cannot be uploaded, for instance while the device is offline for a long
+     * time.  Once either limit is passed, stored events are dropped as the eviction policy says and the number dropped is
+     * reported with the next upload.  Defaults to 10000 events, 5 MB and {@link QCEvictionPolicy#DROP_OLDEST}.
+     *
+     * @param maxEvents      The most events to store, or 0 for no limit on the number of events.
+     * @param maxBytes       The most bytes of event data to store, or 0 for no limit on the size.
+     * @param evictionPolicy Which events to drop when a limit is passed.
+     */
+    public static void setStoredEventLimits(int maxEvents, long maxBytes, QCEvictionPolicy evictionPolicy) {
+        QCMeasurement.INSTANCE.setStoredEventLimits(Math.max(0, maxEvents), Math.max(0, maxBytes),
+                evictionPolicy != null ? evictionPolicy : QCEvictionPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Fold repeated calls to logEvent with the same name and labels into a single event with a count.  Useful for
+     * events that are logged many times a session.  An event is counted for a minute after it was first logged, later
+     * calls start a new count.  Counts still open are sent when the app pauses.  Off by default.
+     *
+     * @param aggregate Whether or not repeated app events should be aggregated.
+     */
+    public static void setEventAggregation(boolean aggregate) {
+        QCMeasurement.INSTANCE.setEventAggregation(aggregate);
+    }
+
+    /**
+     * Keep the main thread free of SDK work.  When on, every call to the SDK only notes the time it was made and is then
+     * run in order on a thread of the SDK's own, so start up never reads the disk or the database on the caller's
+     * thread.  Events keep the time of the call that logged them.  Off by default.  Should be set before the first
+     * call to activityStart.
+     *
+     * @param asynchronousStartUp Whether or not calls to the SDK should be run off the calling thread.
+     */
+    public static void setAsynchronousStartUp(boolean asynchronousStartUp) {
+        QCMeasurement.INSTANCE.setAsyncStartUp(asynchronousStartUp);
+    }
+
     /**
      * Show the About Quantcast Screen via {@link Activity#startActivity(Intent)}.
      *
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends the same batch with and without gzip through the SDK's transport to a local server, and checks the server
+ * decodes the same payload from both.  The compressed to raw size ratio is written to the log under this class name.
+ */
+public class QCDataUploaderGzipTest extends AndroidTestCase {
+
+    private static final String TAG = "QCDataUploaderGzipTest";
+    private static final int BATCH_SIZE = 200;
+
+    private QCLocalHttpServer m_server;
+    private QCDatabaseDAO m_dao;
+    private QCPolicy m_policy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(QCDatabaseDAO.NAME);
+        m_server = new QCLocalHttpServer(0);
+        QCMeasurement.INSTANCE.setTransport(QCTestUtility.redirectedTransport(m_server.getUrl()));
+        m_dao = new QCDatabaseDAO(getContext());
+        m_policy = QCTestUtility.loadedPolicy(getContext(), "{}");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        QCMeasurement.INSTANCE.setTransport(null);
+        m_server.shutdown();
+        m_dao.close();
+        getContext().deleteDatabase(QCDatabaseDAO.NAME);
+        QCTestUtility.deletePolicy(getContext());
+        super.tearDown();
+    }
+
+    public void testCompressedUploadDecodesToTheSamePayload() throws Exception {
+        m_dao.writeEvents(QCTestUtility.appEvents("session", BATCH_SIZE));
+        QCDataUploader uploader = new QCDataUploader();
+        SQLiteDatabase db = m_dao.getWritableDatabase();
+        try {
+            long now = System.currentTimeMillis();
+            String leaseId = m_dao.leaseEvents(db, "gzip-test", BATCH_SIZE, BATCH_SIZE, now, now + 60 * 1000);
+            QCUploadEncoder encoder = new QCUploadEncoder(leaseId, m_dao, db, m_policy);
+            assertEquals(leaseId, uploader.synchronousUploadEvents(encoder, false));
+            assertEquals(leaseId, uploader.synchronousUploadEvents(encoder, true));
+        } finally {
+            m_dao.close();
+        }
+
+        List<QCLocalHttpServer.Request> requests = m_server.getRequests();
+        assertEquals(2, requests.size());
+        byte[] raw = requests.get(0).getBody();
+        byte[] compressed = requests.get(1).getBody();
+        assertNull(requests.get(0).getHeader("Content-Encoding"));
+        assertEquals("gzip", requests.get(1).getHeader("Content-Encoding"));
+        String payload = new String(raw, "US-ASCII");
+        assertTrue(payload.startsWith("{\"" + QCDataUploader.QC_UPLOAD_ID_KEY + "\":\"gzip-test\""));
+        assertTrue(Arrays.equals(raw, QCTestUtility.gunzip(compressed)));
+        assertTrue(compressed.length < raw.length);
+
+        Log.i(TAG, BATCH_SIZE + " events: " + raw.length + " bytes raw, " + compressed.length + " bytes compressed, ratio "
+                + ((double) compressed.length / raw.length));
+    }
+}
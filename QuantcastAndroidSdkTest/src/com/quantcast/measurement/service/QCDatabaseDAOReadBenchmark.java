@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares reading a leased batch the way an upload reads it against the per event parameter queries of the version 2
+ * tables, at 50, 200 and 2000 stored events.  Both sides rebuild every event under the same loaded policy, so only the
+ * storage layout differs.  Times are written to the log under this class name.
+ */
+public class QCDatabaseDAOReadBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "QCDatabaseDAOReadBenchmark";
+    private static final int[] BATCH_SIZES = {50, 200, 2000};
+    private static final int RUNS = 5;
+
+    private QCDatabaseDAO m_dao;
+    private QCPolicy m_policy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(QCDatabaseDAO.NAME);
+        m_dao = new QCDatabaseDAO(getContext());
+        m_policy = QCTestUtility.loadedPolicy(getContext(), "{}");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_dao.close();
+        getContext().deleteDatabase(QCDatabaseDAO.NAME);
+        QCTestUtility.deletePolicy(getContext());
+        super.tearDown();
+    }
+
+    public void testReadTimes() {
+        for (int size : BATCH_SIZES) {
+            long streamed = timeStreamedRead(size);
+            long legacy = timeLegacyRead(size);
+            Log.i(TAG, size + " events: leased read " + streamed + "ms, per event queries " + legacy + "ms (best of " + RUNS + ")");
+        }
+    }
+
+    private long timeStreamedRead(int size) {
+        m_dao.removeAllEvents();
+        List<QCEvent> events = new ArrayList<QCEvent>(size);
+        for (int i = 0; i < size; i++) {
+            QCEvent event = new QCEvent("session");
+            event.addParameters(sampleParameters(i));
+            events.add(event);
+        }
+        assertEquals(size, m_dao.writeEvents(events));
+
+        long best = Long.MAX_VALUE;
+        SQLiteDatabase db = m_dao.getWritableDatabase();
+        try {
+            long now = System.currentTimeMillis();
+            String leaseId = m_dao.leaseEvents(db, "benchmark", size, size, now, now + QCDataManager.UPLOAD_LEASE_DURATION);
+            for (int run = 0; run < RUNS; run++) {
+                final int[] read = {0};
+                long start = SystemClock.elapsedRealtime();
+                m_dao.readLeasedEvents(db, leaseId, m_policy, new QCDatabaseDAO.EventCallback() {
+                    @Override
+                    public void eventRead(long eventId, QCEvent event) {
+                        assertNotNull(event);
+                        read[0]++;
+                    }
+                });
+                best = Math.min(best, SystemClock.elapsedRealtime() - start);
+                assertEquals(size, read[0]);
+            }
+        } finally {
+            m_dao.close();
+        }
+        return best;
+    }
+
+    //the version 2 layout, one row per event and one row per parameter, read with a query per event
+    private long timeLegacyRead(int size) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("create table events_v2 (id integer primary key autoincrement);");
+            db.execSQL("create table event (eventid integer, name varchar not null, value varchar not null);");
+            db.execSQL("create index event_id_idx on event (eventid);");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < size; i++) {
+                    db.execSQL("insert into events_v2 (id) values (?);", new Object[]{i + 1});
+                    for (Map.Entry<String, String> param : sampleParameters(i).entrySet()) {
+                        db.execSQL("insert into event (eventid, name, value) values (?, ?, ?);",
+                                new Object[]{i + 1, param.getKey(), param.getValue()});
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                int read = 0;
+                long start = SystemClock.elapsedRealtime();
+                Cursor events = db.query("events_v2", new String[]{"id"}, null, null, null, null, "id", Integer.toString(size));
+                try {
+                    while (events.moveToNext()) {
+                        long eventId = events.getLong(0);
+                        Cursor params = db.query("event", new String[]{"name", "value"}, "eventid = ?",
+                                new String[]{Long.toString(eventId)}, null, null, null);
+                        try {
+                            Map<String, String> eventParams = new HashMap<String, String>();
+                            while (params.moveToNext()) {
+                                eventParams.put(params.getString(0), params.getString(1));
+                            }
+                            assertNotNull(QCEvent.dataBaseEventWithPolicyCheck(eventId, eventParams, m_policy));
+                        } finally {
+                            params.close();
+                        }
+                        read++;
+                    }
+                } finally {
+                    events.close();
+                }
+                best = Math.min(best, SystemClock.elapsedRealtime() - start);
+                assertEquals(size, read);
+            }
+            return best;
+        } finally {
+            db.close();
+        }
+    }
+
+    private static Map<String, String> sampleParameters(int i) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(QCEvent.QC_EVENT_KEY, QCEvent.QC_EVENT_APPEVENT);
+        params.put(QCEvent.QC_APPEVENT_KEY, "button.click." + (i % 10));
+        params.put(QCEvent.QC_SESSIONID_KEY, "8c1a2f0e-3b5d-4c7e-9f1a-2b3c4d5e6f70");
+        params.put(QCEvent.QC_APPID_KEY, "1f2e3d4c-5b6a-7980-a1b2-c3d4e5f60718");
+        params.put(QCEvent.QC_TIMESTAMP_KEY, Long.toString(1380000000L + i));
+        params.put(QCEvent.QC_PARAMETER_APP_LABEL, "free,tablet");
+        return params;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+/**
+ * Checks that repeats are counted into one event, and when the aggregated events are let go.
+ */
+public class QCEventAggregatorTest extends AndroidTestCase {
+
+    private static final long WINDOW = 60 * 1000;
+    private static final String[] LABELS = {"free"};
+
+    @Override
+    protected void tearDown() throws Exception {
+        QCMeasurement.INSTANCE.setEventAggregation(false);
+        QCMeasurement.INSTANCE.clearSession();
+        QCTestUtility.deletePolicy(getContext());
+        super.tearDown();
+    }
+
+    public void testRepeatsAreCounted() {
+        QCEventAggregator aggregator = new QCEventAggregator(QCEventAggregator.DEFAULT_CAPACITY, WINDOW);
+        for (int i = 0; i < 3; i++) {
+            //a fresh array each time, like an app building its labels per call
+            assertTrue(aggregator.add(getContext(), "session", "level.complete", new String[]{"free"}, null, 1, 1000 + i).isEmpty());
+        }
+        assertTrue(aggregator.add(getContext(), "session", "level.failed", LABELS, null, 1, 1003).isEmpty());
+
+        List<QCEvent> events = aggregator.drain();
+        assertEquals(2, events.size());
+        assertEquals("level.complete", events.get(0).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+        assertEquals("3", events.get(0).getParameters().get(QCEvent.QC_COUNT_KEY));
+        assertEquals("level.failed", events.get(1).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+        assertNull(events.get(1).getParameters().get(QCEvent.QC_COUNT_KEY));
+        assertTrue(aggregator.drain().isEmpty());
+    }
+
+    public void testDifferentLabelsOrSampleRatesAreNotMerged() {
+        QCEventAggregator aggregator = new QCEventAggregator(QCEventAggregator.DEFAULT_CAPACITY, WINDOW);
+        aggregator.add(getContext(), "session", "level.complete", LABELS, null, 1, 1000);
+        aggregator.add(getContext(), "session", "level.complete", new String[]{"paid"}, null, 1, 1000);
+        aggregator.add(getContext(), "session", "level.complete", LABELS, null, 0.5, 1000);
+        aggregator.add(getContext(), "other", "level.complete", LABELS, null, 1, 1000);
+        assertEquals(4, aggregator.drain().size());
+    }
+
+    public void testEventIsPostedOnceItsWindowHasPassed() {
+        QCEventAggregator aggregator = new QCEventAggregator(QCEventAggregator.DEFAULT_CAPACITY, WINDOW);
+        aggregator.add(getContext(), "session", "level.complete", LABELS, null, 1, 1000);
+        aggregator.add(getContext(), "session", "level.complete", LABELS, null, 1, 1000 + WINDOW - 1);
+        aggregator.add(getContext(), "session", "level.failed", LABELS, null, 1, 1000 + WINDOW / 2);
+
+        //the first event's window is over, the second one's is not
+        List<QCEvent> done = aggregator.add(getContext(), "session", "level.complete", LABELS, null, 1, 1000 + WINDOW);
+        assertEquals(1, done.size());
+        assertEquals("level.complete", done.get(0).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+        assertEquals("2", done.get(0).getParameters().get(QCEvent.QC_COUNT_KEY));
+
+        //the repeat that arrived as the window closed starts a new count
+        List<QCEvent> rest = aggregator.drain();
+        assertEquals(2, rest.size());
+        assertEquals("level.failed", rest.get(0).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+        assertEquals("level.complete", rest.get(1).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+        assertNull(rest.get(1).getParameters().get(QCEvent.QC_COUNT_KEY));
+    }
+
+    public void testOldestEventIsPostedAtCapacity() {
+        QCEventAggregator aggregator = new QCEventAggregator(2, WINDOW);
+        aggregator.add(getContext(), "session", "first", LABELS, null, 1, 1000);
+        aggregator.add(getContext(), "session", "first", LABELS, null, 1, 1001);
+        aggregator.add(getContext(), "session", "second", LABELS, null, 1, 1002);
+
+        List<QCEvent> done = aggregator.add(getContext(), "session", "third", LABELS, null, 1, 1003);
+        assertEquals(1, done.size());
+        assertEquals("first", done.get(0).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+        assertEquals("2", done.get(0).getParameters().get(QCEvent.QC_COUNT_KEY));
+
+        List<QCEvent> rest = aggregator.drain();
+        assertEquals(2, rest.size());
+        assertEquals("second", rest.get(0).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+        assertEquals("third", rest.get(1).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+    }
+
+    public void testCountsArePostedBeforeTheSessionCloses() throws Exception {
+        QCPolicy policy = QCTestUtility.loadedPolicy(getContext(), "{}");
+        QCTestUtility.RecordingDataManager manager = new QCTestUtility.RecordingDataManager(getContext());
+        QCTestUtility.startSession(getContext(), policy, manager);
+        QCMeasurement.INSTANCE.setEventAggregation(true);
+
+        for (int i = 0; i < 3; i++) {
+            QCMeasurement.INSTANCE.logEvent("level.complete", LABELS);
+        }
+        assertTrue(manager.getPosted().isEmpty());
+        QCMeasurement.INSTANCE.end(LABELS, null);
+
+        List<QCEvent> posted = manager.getPosted();
+        assertEquals(2, posted.size());
+        assertEquals(QCEvent.QC_EVENT_APPEVENT, posted.get(0).getParameters().get(QCEvent.QC_EVENT_KEY));
+        assertEquals("3", posted.get(0).getParameters().get(QCEvent.QC_COUNT_KEY));
+        assertEquals(QCEvent.QC_EVENT_FINISHED, posted.get(1).getParameters().get(QCEvent.QC_EVENT_KEY));
+    }
+}
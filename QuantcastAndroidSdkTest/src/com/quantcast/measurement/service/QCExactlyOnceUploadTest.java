@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a backlog through the SDK's own upload task and transport to a local server that, like the real one, ignores
+ * an upload id it has already accepted.  The client crashes at the points where a batch can be sent twice, and every
+ * event must still be accepted by the server exactly once.
+ */
+public class QCExactlyOnceUploadTest extends AndroidTestCase {
+
+    private static final int EVENTS = 50;
+    private static final int MAX_UPLOADS = EVENTS + 1;
+
+    private DeduplicatingServer m_server;
+    private QCPolicy m_policy;
+    private QCDataManager m_manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(QCDatabaseDAO.NAME);
+        m_server = new DeduplicatingServer();
+        QCMeasurement.INSTANCE.setTransport(QCTestUtility.redirectedTransport(m_server.getUrl()));
+        m_policy = QCTestUtility.loadedPolicy(getContext(), "{}");
+        //the upload task reads the network through the session, whose latency events are only recorded
+        QCTestUtility.startSession(getContext(), m_policy, new QCTestUtility.RecordingDataManager(getContext()));
+        //created while the database is empty, so a failed upload finds nothing to retry later on its own
+        m_manager = new QCDataManager(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        QCMeasurement.INSTANCE.setTransport(null);
+        QCMeasurement.INSTANCE.clearSession();
+        m_server.shutdown();
+        new QCUploadBackoff(getContext()).uploadSucceeded();
+        getContext().deleteDatabase(QCDatabaseDAO.NAME);
+        QCTestUtility.deletePolicy(getContext());
+        super.tearDown();
+    }
+
+    public void testEveryEventIsAcceptedOnceAcrossCrashes() throws Exception {
+        List<QCEvent> events = new ArrayList<QCEvent>(EVENTS);
+        for (int i = 0; i < EVENTS; i++) {
+            QCEvent event = new QCEvent("session");
+            event.addParameter(QCEvent.QC_EVENT_KEY, QCEvent.QC_EVENT_APPEVENT);
+            event.addParameter(QCEvent.QC_APPEVENT_KEY, "event." + i);
+            events.add(event);
+        }
+        assertEquals(EVENTS, m_manager.getDataBase().writeEvents(events));
+
+        //the server takes the first batch but the connection drops before the response arrives.  The client either
+        //sends it again right away or gives the lease up, the server keeps one copy either way
+        m_server.dropNextResponses(1);
+        upload();
+        String first = m_server.lastUploadId();
+        assertNotNull(first);
+
+        //a batch is accepted and the process dies before its events are deleted
+        upload();
+        String unacknowledged = m_server.lastUploadId();
+        restartProcess();
+
+        //once its lease runs out the batch is leased again, and sent under the same id
+        expireLease(unacknowledged);
+        upload();
+        assertEquals(unacknowledged, m_server.lastUploadId());
+
+        //the process dies after leasing a batch but before sending it
+        SQLiteDatabase db = m_manager.getDataBase().getWritableDatabase();
+        long now = System.currentTimeMillis();
+        String orphaned = m_manager.getDataBase().leaseEvents(db, QCUtility.generateUniqueId(), 10, 10, now,
+                now + QCDataManager.UPLOAD_LEASE_DURATION);
+        m_manager.getDataBase().close();
+        assertNotNull(orphaned);
+        restartProcess();
+
+        expireLease(orphaned);
+        upload();
+        assertEquals(orphaned, m_server.lastUploadId());
+
+        //the rest goes out normally, and the upload after the last one deletes what it acknowledged
+        for (int i = 0; i < MAX_UPLOADS && m_manager.getDataBase().numberOfEvents() > 0; i++) {
+            upload();
+        }
+        assertEquals(0, m_manager.getDataBase().numberOfEvents());
+
+        assertTrue(m_server.getDuplicateCount() >= 1);
+        Map<String, Integer> accepted = m_server.getAcceptedEvents();
+        assertEquals(EVENTS, accepted.size());
+        for (int i = 0; i < EVENTS; i++) {
+            assertEquals("event." + i, Integer.valueOf(1), accepted.get("event." + i));
+        }
+    }
+
+    //one upload by the manager's own task, waiting until its result has been handled on the main thread
+    private void upload() throws InterruptedException {
+        m_manager.newUploadTask(m_policy).execute();
+        final CountDownLatch done = new CountDownLatch(1);
+        //the SDK thread runs one task at a time, so this runs once the upload has, and then posts behind its result
+        QCExecutor.INSTANCE.execute(new QCExecutor.Task() {
+            @Override
+            public void run() {
+                QCExecutor.INSTANCE.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        done.countDown();
+                    }
+                });
+            }
+
+            @Override
+            public boolean isRequired() {
+                return true;
+            }
+
+            @Override
+            public void rejected() {
+            }
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+    }
+
+    //the lease duration has passed, which the database sees the same way as a lease given up
+    private void expireLease(String leaseId) {
+        QCDatabaseDAO dao = m_manager.getDataBase();
+        try {
+            dao.expireLease(dao.getWritableDatabase(), leaseId);
+        } finally {
+            dao.close();
+        }
+    }
+
+    //everything the process kept in memory, like the acknowledged leases, is gone and only the database is left
+    private void restartProcess() {
+        m_manager = new QCDataManager(getContext());
+    }
+
+    /**
+     * Accepts each upload id once, and counts the events of the uploads it accepted.
+     */
+    private static class DeduplicatingServer extends QCLocalHttpServer {
+        private final Set<String> m_acceptedIds = new HashSet<String>();
+        private final Map<String, Integer> m_acceptedEvents = new HashMap<String, Integer>();
+        private String m_lastUploadId;
+        private int m_duplicates;
+        private int m_dropResponses;
+
+        DeduplicatingServer() throws IOException {
+            super(0);
+        }
+
+        @Override
+        protected synchronized int handle(Request request) {
+            try {
+                byte[] body = request.getBody();
+                if ("gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) {
+                    body = QCTestUtility.gunzip(body);
+                }
+                JSONObject upload = new JSONObject(new String(body, "US-ASCII"));
+                m_lastUploadId = upload.getString(QCDataUploader.QC_UPLOAD_ID_KEY);
+                if (m_acceptedIds.add(m_lastUploadId)) {
+                    JSONArray uploaded = upload.getJSONArray(QCDataUploader.QC_EVENTS_KEY);
+                    for (int i = 0; i < uploaded.length(); i++) {
+                        String name = uploaded.getJSONObject(i).getString(QCEvent.QC_APPEVENT_KEY);
+                        Integer count = m_acceptedEvents.get(name);
+                        m_acceptedEvents.put(name, count == null ? 1 : count + 1);
+                    }
+                } else {
+                    m_duplicates++;
+                }
+            } catch (Exception e) {
+                return 400;
+            }
+            if (m_dropResponses > 0) {
+                m_dropResponses--;
+                return DROP_RESPONSE;
+            }
+            return 200;
+        }
+
+        synchronized void dropNextResponses(int count) {
+            m_dropResponses = count;
+        }
+
+        synchronized String lastUploadId() {
+            return m_lastUploadId;
+        }
+
+        synchronized int getDuplicateCount() {
+            return m_duplicates;
+        }
+
+        synchronized Map<String, Integer> getAcceptedEvents() {
+            return new HashMap<String, Integer>(m_acceptedEvents);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface.  Every request is recorded with its headers and its whole body,
+ * and answered by {@link #handle(Request)}, which accepts everything unless a subclass decides otherwise.
+ * <p/>
+ * Connections are kept alive unless the client asks otherwise.  Every new connection waits a fixed time before it is
+ * served, standing in for the TCP and TLS handshakes a real server costs, and the connections are counted.
+ */
+class QCLocalHttpServer {
+
+    /**
+     * Returned by {@link #handle(Request)} to close the connection without answering, as if the response was lost.
+     */
+    static final int DROP_RESPONSE = -1;
+
+    private static final String RESPONSE_BODY = "{}";
+
+    private final ServerSocket m_serverSocket;
+    private final long m_handshakeDelay;
+    private final AtomicInteger m_connections = new AtomicInteger();
+    private final List<Request> m_requests = Collections.synchronizedList(new ArrayList<Request>());
+
+    QCLocalHttpServer(long handshakeDelay) throws IOException {
+        m_handshakeDelay = handshakeDelay;
+        m_serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "QCLocalHttpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + m_serverSocket.getLocalPort() + "/mobile";
+    }
+
+    int getConnectionCount() {
+        return m_connections.get();
+    }
+
+    /**
+     * @return every request received so far, oldest first
+     */
+    List<Request> getRequests() {
+        synchronized (m_requests) {
+            return new ArrayList<Request>(m_requests);
+        }
+    }
+
+    void shutdown() throws IOException {
+        m_serverSocket.close();
+    }
+
+    /**
+     * Called on the connection's thread for every request, after it was recorded.
+     *
+     * @return the status code to answer with, or {@link #DROP_RESPONSE}
+     */
+    protected int handle(Request request) {
+        return 200;
+    }
+
+    private void acceptConnections() {
+        while (!m_serverSocket.isClosed()) {
+            try {
+                final Socket socket = m_serverSocket.accept();
+                m_connections.incrementAndGet();
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException e) {
+                //closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            Thread.sleep(m_handshakeDelay);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String head = readHead(in);
+                if (head == null) break;
+                Request request = parseRequest(head, in);
+                keepAlive = !"close".equalsIgnoreCase(request.getHeader("Connection"));
+                m_requests.add(request);
+
+                int code = handle(request);
+                if (code == DROP_RESPONSE) break;
+                out.write(("HTTP/1.1 " + code + " " + (code < 400 ? "OK" : "Error") + "\r\nContent-Type: application/json\r\n"
+                        + "Content-Length: " + RESPONSE_BODY.length() + "\r\n" + (keepAlive ? "" : "Connection: close\r\n")
+                        + "\r\n" + RESPONSE_BODY).getBytes("US-ASCII"));
+                out.flush();
+            }
+        } catch (Exception ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Request parseRequest(String head, InputStream in) throws IOException {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            readChunkedBody(in, body);
+        } else if (headers.containsKey("content-length")) {
+            copy(in, body, Long.parseLong(headers.get("content-length")));
+        }
+        return new Request(requestLine[0], requestLine[1], headers, body.toByteArray());
+    }
+
+    //the request line and headers, or null once the client closed the connection
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            head.write(b);
+            matched = (b == '\r' || b == '\n') ? matched + 1 : 0;
+            if (matched == 4) {
+                return head.toString("US-ASCII");
+            }
+        }
+        return null;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void readChunkedBody(InputStream in, OutputStream body) throws IOException {
+        while (true) {
+            String sizeLine = readLine(in);
+            int semicolon = sizeLine.indexOf(';');
+            int size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            if (size == 0) {
+                //trailers end with an empty line
+                while (readLine(in).length() > 0) {
+                    //skip
+                }
+                return;
+            }
+            copy(in, body, size);
+            readLine(in);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long count) throws IOException {
+        for (long i = 0; i < count; i++) {
+            int b = in.read();
+            if (b == -1) return;
+            out.write(b);
+        }
+    }
+
+    static class Request {
+        private final String m_method;
+        private final String m_path;
+        private final Map<String, String> m_headers;
+        private final byte[] m_body;
+
+        Request(String method, String path, Map<String, String> headers, byte[] body) {
+            m_method = method;
+            m_path = path;
+            m_headers = headers;
+            m_body = body;
+        }
+
+        String getMethod() {
+            return m_method;
+        }
+
+        String getPath() {
+            return m_path;
+        }
+
+        /**
+         * @return the value of the header, whatever the case of its name, or null if it was not sent
+         */
+        String getHeader(String name) {
+            return m_headers.get(name.toLowerCase());
+        }
+
+        /**
+         * @return the body as it arrived, with any chunked transfer encoding removed
+         */
+        byte[] getBody() {
+            return m_body;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks which policies suppress app events, and that a suppressed or sampled out app event costs no allocations.
+ */
+public class QCPolicySuppressionTest extends AndroidTestCase {
+
+    private static final int CALLS = 1000;
+    private static final String BLACKLISTED = "{\"blacklist\":[\"" + QCEvent.QC_EVENT_KEY + "\"]}";
+    private static final String SAMPLED_OUT = "{\"eventSampleRates\":{\"level.complete\":0}}";
+
+    private QCTestUtility.RecordingDataManager m_manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_manager = new QCTestUtility.RecordingDataManager(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        QCMeasurement.INSTANCE.setAsyncStartUp(false);
+        QCMeasurement.INSTANCE.clearSession();
+        QCTestUtility.deletePolicy(getContext());
+        super.tearDown();
+    }
+
+    public void testBlacklistedEventTypeSuppresses() throws Exception {
+        QCPolicy policy = QCTestUtility.loadedPolicy(getContext(), BLACKLISTED);
+        assertTrue(policy.suppressesAppEvents());
+    }
+
+    public void testBlacklistedEventNameDoesNotSuppress() throws Exception {
+        //the name is stripped but the event is still counted
+        QCPolicy policy = QCTestUtility.loadedPolicy(getContext(), "{\"blacklist\":[\"" + QCEvent.QC_APPEVENT_KEY + "\"]}");
+        assertFalse(policy.suppressesAppEvents());
+    }
+
+    public void testSuppressedAppEventsAllocateNothing() throws Exception {
+        QCPolicy policy = QCTestUtility.loadedPolicy(getContext(), BLACKLISTED);
+        QCTestUtility.startSession(getContext(), policy, m_manager);
+        String[] labels = {"free"};
+        //the first calls may load classes
+        QCMeasurement.INSTANCE.logEvent("level.complete", labels);
+        QCMeasurement.INSTANCE.logEvent("level.complete", "free");
+        policy.suppressesAppEvents();
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < CALLS; i++) {
+                policy.suppressesAppEvents();
+            }
+            assertEquals("suppressesAppEvents allocations", 0, Debug.getThreadAllocCount());
+
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < CALLS; i++) {
+                QCMeasurement.INSTANCE.logEvent("level.complete", labels);
+            }
+            assertEquals("logEvent allocations", 0, Debug.getThreadAllocCount());
+
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < CALLS; i++) {
+                QCMeasurement.INSTANCE.logEvent("level.complete", "free");
+            }
+            assertEquals("logEvent with a single label allocations", 0, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertTrue(m_manager.getPosted().isEmpty());
+    }
+
+    public void testSampledOutAppEventsAllocateNothing() throws Exception {
+        QCPolicy policy = QCTestUtility.loadedPolicy(getContext(), SAMPLED_OUT);
+        assertFalse(policy.suppressesAppEvents());
+        QCTestUtility.startSession(getContext(), policy, m_manager);
+        String[] labels = {"free"};
+        QCMeasurement.INSTANCE.logEvent("level.complete", labels);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < CALLS; i++) {
+                QCMeasurement.INSTANCE.logEvent("level.complete", labels);
+            }
+            assertEquals("logEvent allocations", 0, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertTrue(m_manager.getPosted().isEmpty());
+
+        //other events are still sampled at the default rate
+        QCMeasurement.INSTANCE.logEvent("level.failed", labels);
+        assertEquals(1, m_manager.getPosted().size());
+    }
+
+    public void testSuppressedAppEventsAreNotQueuedWithAsyncStartUp() throws Exception {
+        assertNothingQueuedWithAsyncStartUp(QCTestUtility.loadedPolicy(getContext(), BLACKLISTED));
+    }
+
+    public void testSampledOutAppEventsAreNotQueuedWithAsyncStartUp() throws Exception {
+        assertNothingQueuedWithAsyncStartUp(QCTestUtility.loadedPolicy(getContext(), SAMPLED_OUT));
+    }
+
+    public void testKeptAppEventIsPostedWithAsyncStartUp() throws Exception {
+        QCTestUtility.startSession(getContext(), QCTestUtility.loadedPolicy(getContext(), "{}"), m_manager);
+        QCMeasurement.INSTANCE.setAsyncStartUp(true);
+
+        QCMeasurement.INSTANCE.logEvent("level.complete", new String[]{"free"});
+        waitForCalls();
+        assertEquals(1, m_manager.getPosted().size());
+        assertEquals("level.complete", m_manager.getPosted().get(0).getParameters().get(QCEvent.QC_APPEVENT_KEY));
+    }
+
+    //a dropped call must not even allocate the runnable that would carry it to the call thread
+    private void assertNothingQueuedWithAsyncStartUp(QCPolicy policy) throws Exception {
+        QCTestUtility.startSession(getContext(), policy, m_manager);
+        QCMeasurement.INSTANCE.setAsyncStartUp(true);
+        String[] labels = {"free"};
+        QCMeasurement.INSTANCE.logEvent("level.complete", labels);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int i = 0; i < CALLS; i++) {
+                QCMeasurement.INSTANCE.logEvent("level.complete", labels);
+            }
+            assertEquals("logEvent allocations", 0, Debug.getThreadAllocCount());
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        waitForCalls();
+        assertTrue(m_manager.getPosted().isEmpty());
+    }
+
+    //api calls run one at a time in order, so once this one runs every call made before it has
+    private void waitForCalls() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        QCExecutor.INSTANCE.executeCall(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
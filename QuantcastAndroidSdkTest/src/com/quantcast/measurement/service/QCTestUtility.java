@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Helpers shared by the tests.
+ */
+final class QCTestUtility {
+
+    private QCTestUtility() {
+    }
+
+    /**
+     * @return a loaded policy read from the policy cache, which is replaced with the given JSON
+     */
+    static QCPolicy loadedPolicy(Context context, String json) throws IOException {
+        FileOutputStream out = new FileOutputStream(policyFile(context));
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        QCPolicy policy = QCPolicy.getCachedPolicy(context);
+        if (!policy.policyIsLoaded()) {
+            throw new IllegalStateException("Policy " + json + " did not load");
+        }
+        return policy;
+    }
+
+    static void deletePolicy(Context context) {
+        policyFile(context).delete();
+    }
+
+    private static File policyFile(Context context) {
+        return new File(context.getDir(QCPolicy.POLICY_DIRECTORY, Context.MODE_PRIVATE), QCPolicy.POLICY_FILENAME);
+    }
+
+    /**
+     * @return app events shaped like the ones an app logs, with the keys every event repeats
+     */
+    static List<QCEvent> appEvents(String sessionId, int count) {
+        List<QCEvent> events = new ArrayList<QCEvent>(count);
+        for (int i = 0; i < count; i++) {
+            QCEvent event = new QCEvent(sessionId);
+            event.addParameter(QCEvent.QC_EVENT_KEY, QCEvent.QC_EVENT_APPEVENT);
+            event.addParameter(QCEvent.QC_APPEVENT_KEY, "level." + (i % 20) + ".complete");
+            event.addParameter(QCEvent.QC_APPID_KEY, "1f2e3d4c-5b6a-7980-a1b2-c3d4e5f60718");
+            event.addParameter(QCEvent.QC_PARAMETER_APP_LABEL, "free");
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * @return the SDK's own transport for the device, sending every request to url instead of where it was meant to go
+     */
+    static QCTransport redirectedTransport(final String url) {
+        QCMeasurement.INSTANCE.setTransport(null);
+        final QCTransport transport = QCMeasurement.INSTANCE.getTransport();
+        return new QCTransport() {
+            @Override
+            public int post(String ignored, Map<String, String> headers, Body body) throws IOException {
+                return transport.post(url, headers, body);
+            }
+
+            @Override
+            public String get(String ignored) throws IOException {
+                return transport.get(url);
+            }
+        };
+    }
+
+    /**
+     * Puts QCMeasurement in an active session under the given policy and manager, without a start up or a policy
+     * download.  Undone with {@link QCMeasurement#clearSession()}.
+     */
+    static void startSession(Context context, QCPolicy policy, QCDataManager manager) throws Exception {
+        setMeasurementField("m_context", context.getApplicationContext() != null ? context.getApplicationContext() : context);
+        setMeasurementField("m_optedOut", false);
+        setMeasurementField("m_policy", policy);
+        setMeasurementField("m_manager", manager);
+        setMeasurementField("m_sessionId", QCUtility.generateUniqueId());
+    }
+
+    private static void setMeasurementField(String name, Object value) throws Exception {
+        Field field = QCMeasurement.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(QCMeasurement.INSTANCE, value);
+    }
+
+    /**
+     * A manager that keeps what is posted to it instead of storing it.
+     */
+    static class RecordingDataManager extends QCDataManager {
+        private final List<QCEvent> m_posted = new ArrayList<QCEvent>();
+
+        RecordingDataManager(Context context) {
+            super(context);
+        }
+
+        @Override
+        synchronized void postEvent(QCEvent event, QCPolicy policy) {
+            m_posted.add(event);
+        }
+
+        synchronized List<QCEvent> getPosted() {
+            return new ArrayList<QCEvent>(m_posted);
+        }
+    }
+
+    static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
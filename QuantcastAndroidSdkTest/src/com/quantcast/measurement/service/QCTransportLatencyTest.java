@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Quantcast Corp.
+ *
+ * This software is licensed under the Quantcast Mobile App Measurement Terms of Service
+ * https://www.quantcast.com/learning-center/quantcast-terms/mobile-app-measurement-tos
+ * (the “License”). You may not use this file unless (1) you sign up for an account at
+ * https://www.quantcast.com and click your agreement to the License and (2) are in
+ * compliance with the License. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.quantcast.measurement.service;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures upload latency against a local test server with each transport, once reusing connections and once with
+ * every request asking for its connection to be closed.  Average latencies are written to the log under this class
+ * name, only the connection counts are checked.
+ */
+public class QCTransportLatencyTest extends AndroidTestCase {
+
+    private static final String TAG = "QCTransportLatencyTest";
+    private static final int REQUESTS = 20;
+    //roughly a TCP and a TLS handshake on a good mobile network
+    private static final long HANDSHAKE_DELAY = 50;
+
+    private QCLocalHttpServer m_server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        m_server = new QCLocalHttpServer(HANDSHAKE_DELAY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_server.shutdown();
+        super.tearDown();
+    }
+
+    public void testUrlConnectionTransportReusesConnections() throws Exception {
+        measure(new QCUrlConnectionTransport());
+    }
+
+    public void testApacheTransportReusesConnections() throws Exception {
+        measure(new QCApacheTransport());
+    }
+
+    private void measure(QCTransport transport) throws IOException {
+        long pooledTime = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            pooledTime += timePost(transport, true);
+        }
+        int pooledConnections = m_server.getConnectionCount();
+
+        long unpooledTime = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            unpooledTime += timePost(transport, false);
+        }
+        int unpooledConnections = m_server.getConnectionCount() - pooledConnections;
+
+        Log.i(TAG, transport.getClass().getSimpleName() + " pooled: " + (pooledTime / REQUESTS) + "ms average over "
+                + pooledConnections + " connections, unpooled: " + (unpooledTime / REQUESTS) + "ms average over "
+                + unpooledConnections + " connections");
+        assertEquals(2 * REQUESTS, m_server.getRequests().size());
+        assertEquals(1, pooledConnections);
+        //the first unpooled request may still go out on the connection the pooled ones left open
+        assertTrue(unpooledConnections >= REQUESTS - 1);
+    }
+
+    private long timePost(QCTransport transport, boolean keepAlive) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        if (!keepAlive) {
+            headers.put("Connection", "close");
+        }
+        final byte[] body = "{\"uplid\":\"latency\",\"qcv\":\"1_1_0\",\"events\":[]}".getBytes("US-ASCII");
+        long start = SystemClock.elapsedRealtime();
+        int code = transport.post(m_server.getUrl(), headers, new QCTransport.Body() {
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(body);
+            }
+        });
+        assertEquals(200, code);
+        return SystemClock.elapsedRealtime() - start;
+    }
+}